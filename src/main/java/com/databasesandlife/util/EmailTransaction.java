@@ -181,21 +181,38 @@ public class EmailTransaction {
     }
     
     public void commit() {
+        ThreadPool threads = new ThreadPool();
+        threads.setThreadNamePrefix(getClass().getSimpleName() + ".commit");
+        commit(threads);
+    }
+    
+    /** Sends the emails using the threads of the service, rather than creating new threads */
+    public void commit(@Nonnull ThreadPoolService service) {
+        commit(new ThreadPool(service));
+    }
+    
+    protected void commit(@Nonnull ThreadPool threads) {
         try (Timer ignored = new Timer(getClass().getSimpleName()+".commit")) {
-            ThreadPool threads = new ThreadPool();
-            threads.setThreadNamePrefix(getClass().getSimpleName() + ".commit");
-            threads.setThreadCount(3); // Have some parallelism but do not overload the remote SMTP server
-            for (Message msg : messages) {
-                threads.addTask(() -> {
-                    try (Timer ignored2 = new Timer("Send email to '" + msg.getRecipients(RecipientType.TO)[0]+"'")) {
-                        Transport.send(msg);
-                    }
-                    catch (MessagingException e) { throw new RuntimeException(e); }
-                });
-            }        
+            addSendTasks(threads);
             threads.execute();
         }
     }
+    
+    /** 
+     * Adds tasks sending the emails to a pool which may also be executing other tasks. 
+     * At most 3 emails are sent at once, see {@link ThreadPool#setResourceLimit(String, int)}; other tasks may use all threads.
+     */
+    public void addSendTasks(@Nonnull ThreadPool threads) {
+        threads.setResourceLimit("smtp", 3);  // Have some parallelism but do not overload the remote SMTP server
+        for (Message msg : messages) {
+            threads.addTask(ThreadPool.withResourceClass("smtp", () -> {
+                try (Timer ignored = new Timer("Send email to '" + msg.getRecipients(RecipientType.TO)[0]+"'")) {
+                    Transport.send(msg);
+                }
+                catch (MessagingException e) { throw new RuntimeException(e); }
+            }));
+        }
+    }
    
     public int getEmailCountForTesting() { return messages.size(); }
     public String getEmailBodyForTesting(int idx) {
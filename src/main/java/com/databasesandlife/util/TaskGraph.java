@@ -0,0 +1,119 @@
+package com.databasesandlife.util;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Tasks with dependencies, for graphs with millions of tasks and tens of millions of dependencies, executed on a {@link ThreadPool}.
+ *    <p>
+ * {@link ThreadPool#addTaskWithDependencies(List, Runnable...)} looks tasks up by identity, and processes the completion
+ * of each task under the pool's lock. Here, instead, adding a task returns a {@link Node}, which is used to refer to it
+ * as a dependency of later tasks. Each node has an atomic counter of dependencies not yet done, and an array of
+ * the nodes which depend on it. When a task completes, the counters of its dependents are decremented, without any
+ * lock shared between tasks, and each dependent whose counter reaches zero is added to the pool.
+ * Each dependency costs one array element.
+ *    <p>
+ * Tasks can be added before {@link ThreadPool#execute()} is called, or from within running tasks.
+ * The pool's work-stealing mode, see {@link ThreadPool#setWorkStealing(boolean)}, is recommended, so that
+ * dependents which become ready are also added to the pool without taking its lock.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   ThreadPool pool = new ThreadPool();
+ *   pool.setWorkStealing(true);
+ *   TaskGraph graph = new TaskGraph(pool);
+ *   TaskGraph.Node compile = graph.add(() -&gt; ...);
+ *   TaskGraph.Node test = graph.add(() -&gt; ..., compile);
+ *   graph.add(() -&gt; ..., compile, test);
+ *   pool.execute();
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class TaskGraph {
+
+    public static final class Node implements Runnable {
+        protected static final AtomicIntegerFieldUpdater<Node> pendingUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(Node.class, "pending");
+
+        protected final @Nonnull TaskGraph graph;
+        protected final @Nonnull Runnable task;
+        /** Dependencies not yet done, plus one while the node is being added */
+        protected volatile int pending = 1;
+        // Guarded by this
+        protected @CheckForNull Node[] dependents = null;
+        protected int dependentCount = 0;
+        protected boolean done = false;
+
+        protected Node(@Nonnull TaskGraph graph, @Nonnull Runnable task) {
+            this.graph = graph;
+            this.task = task;
+        }
+
+        /** @return false if this node is already done, in which case "dependent" does not need to wait for it */
+        protected synchronized boolean addDependent(@Nonnull Node dependent) {
+            if (done) return false;
+            if (dependents == null) dependents = new Node[2];
+            else if (dependentCount == dependents.length) {
+                Node[] larger = new Node[dependents.length * 2];
+                System.arraycopy(dependents, 0, larger, 0, dependentCount);
+                dependents = larger;
+            }
+            dependents[dependentCount++] = dependent;
+            return true;
+        }
+
+        protected void dependencyDone() {
+            if (pendingUpdater.decrementAndGet(this) == 0) graph.pool.addTask(this);
+        }
+
+        @Override public void run() {
+            task.run();
+
+            Node[] toNotify;
+            int count;
+            synchronized (this) {
+                done = true;
+                toNotify = dependents;
+                count = dependentCount;
+                dependents = null;
+            }
+            for (int i = 0; i < count; i++) toNotify[i].dependencyDone();
+        }
+
+        public synchronized boolean isDone() { return done; }
+
+        @Override public String toString() { return task.toString(); }
+    }
+
+    protected final @Nonnull ThreadPool pool;
+
+    public TaskGraph(@Nonnull ThreadPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Adds a task, which is executed by the pool after all its dependencies are done.
+     * @param dependencies nodes previously returned by this method; those which are already done are ignored
+     */
+    public @Nonnull Node add(@Nonnull Runnable task, @Nonnull Collection<Node> dependencies) {
+        Node node = new Node(this, task);
+        for (Node dependency : dependencies) {
+            // Increment first, so a dependency completing immediately after being registered can't make the count zero
+            Node.pendingUpdater.incrementAndGet(node);
+            if ( ! dependency.addDependent(node)) Node.pendingUpdater.decrementAndGet(node);
+        }
+        node.dependencyDone();  // the node is now completely added
+        return node;
+    }
+
+    public @Nonnull Node add(@Nonnull Runnable task, @Nonnull Node... dependencies) {
+        return add(task, asList(dependencies));
+    }
+}
@@ -1,12 +1,22 @@
 package com.databasesandlife.util;
 
+import com.databasesandlife.util.ThreadPoolMetrics.TaskMetrics;
 import com.databasesandlife.util.gwtsafe.IdentityHashSet;
 import org.apache.log4j.Logger;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -32,6 +42,8 @@ import static java.util.Collections.emptyList;
  *    <p>
  * In the case that any task throws an exception, this exception is thrown by the {@link #execute()} method.
  * If all tasks run to completion, the {@link #execute()} method returns with no value.
+ * After a task has failed, no further tasks are started, and tasks already running can stop early, see {@link #isCancelled()},
+ * {@link #setInterruptOnFailure(boolean)} and {@link #cancel()}.
  *    <p>
  * Tasks can depend on other tasks. Use the {@link #addTaskWithDependencies(List, Runnable...)} method to add a new task,
  * which will only start in the first parameter after all the tasks in the second parameter have run to completion. All tasks in the List should have been
@@ -40,12 +52,27 @@ import static java.util.Collections.emptyList;
  * If task A must be executed before task B, normally task A is added first, and B (with dependency on A) is added afterwards.
  * Therefore, when B is added, if A cannot be found, it is assumed to be already finished and B is scheduled immediately.
  * However, if it is unknown in which order tasks will be added, then A can implement {@link ScheduleDependencyInAnyOrder}.
+ * For graphs with millions of tasks and dependencies, see {@link TaskGraph}.
  *    <p>
  * Tasks can run "off pool". For example, in a thread pool doing CPU-intensive tasks, a long-running HTTP request should not 
  * block the threads from performing their CPU-intensive tasks. An "off pool" task runs in its own thread (not a thread that's
  * a member of the thread pool). The thread may still participate in dependency relationships, that is to say it's possible
  * to schedule a normal task to occur after an "off pool" task has completed. See {@link #addTaskOffPool(Runnable...)} 
  * and {@link #addTaskWithDependenciesOffPool(List, Runnable...)}.
+ *    <p>
+ * For many threads executing many small tasks which add further tasks, such as a web crawler,
+ * see {@link #setWorkStealing(boolean)}.
+ *    <p>
+ * To compute values in parallel, without collecting the results into shared collections, see {@link #map(List, Function)},
+ * {@link #mapReduce(List, Supplier, BiConsumer, BinaryOperator)} and {@link #addCallable(Callable)}.
+ *    <p>
+ * To execute more tasks than fit in memory, for example tasks read from a file or database, see {@link #addTaskSource(Iterator)}.
+ *    <p>
+ * To limit how many tasks use a resource at once, such as a database or a remote server, while other tasks
+ * use all threads, see {@link #setResourceLimit(String, int)}.
+ *    <p>
+ * To execute many pools without creating and destroying threads each time, see {@link ThreadPoolService}.
+ * To find out where the time of a run went, see {@link #setMetricsEnabled(boolean)}.
  *    <p>    
  * The difference to an {@link ExecutorService} is:
  * <ul>
@@ -67,32 +94,426 @@ public class ThreadPool {
     /** A dependency which implements this can be added before or after the task that depends on it */
     public interface ScheduleDependencyInAnyOrder extends Runnable { }
 
+    /** Of the ready tasks, those with a higher priority are executed first; tasks not implementing this have priority 0 */
+    public interface PrioritizedTask extends Runnable {
+        double getPriority();
+    }
+    
+    /** Used by {@link #setCriticalPathPrioritization(boolean)}; tasks not implementing this have cost 1 */
+    public interface CostEstimatedTask extends Runnable {
+        /** For example, the expected duration in seconds */
+        double getEstimatedCost();
+    }
+    
+    /** Used by {@link #setResourceLimit(String, int)}; see also {@link #withResourceClass(String, Runnable)} */
+    public interface ResourceLimitedTask extends Runnable {
+        /** For example "db", "smtp", or "http:example.com" */
+        @Nonnull String getResourceClass();
+    }
+    
     /** A task that performs no work, but upon which can be waited, and which can be added when some other work is finished. */
     public static class SynchronizationPoint implements ScheduleDependencyInAnyOrder {
         @Override public void run() { }
     }
     
+    /** 
+     * A task which computes a value, see {@link #addCallable(Callable)}. Tasks depending on it can read the value with {@link #get()}.
+     * Checked exceptions thrown by the {@link Callable} are wrapped in a {@link RuntimeException}, 
+     * see {@link #unwrapException(RuntimeException, Class)}.
+     */
+    public static class CallableTask<T> implements Runnable {
+        protected final @Nonnull Callable<T> callable;
+        protected volatile boolean done = false;
+        protected volatile T result;
+        
+        public CallableTask(@Nonnull Callable<T> callable) { this.callable = callable; }
+        
+        @Override public void run() {
+            try { result = callable.call(); }
+            catch (RuntimeException e) { throw e; }
+            catch (Exception e) { throw new RuntimeException(e); }
+            done = true;
+        }
+        
+        public boolean isDone() { return done; }
+        
+        /** @throws IllegalStateException if the task has not completed successfully */
+        public T get() {
+            if ( ! done) throw new IllegalStateException("Task " + callable + " has not completed");
+            return result;
+        }
+        
+        @Override public String toString() { return callable.toString(); }
+    }
+    
+    protected static class ReadyTask {
+        @Nonnull Runnable task;
+        double priority, criticalPathCost;
+        long sequence;
+        boolean superseded;  // its critical path has become longer, and a new entry has been added to the queue
+    }
+    
+    /** Higher priority first, then longer critical path first, then in the order they became ready */
+    protected static final Comparator<ReadyTask> readyTaskOrder = Comparator
+        .comparingDouble((ReadyTask t) -> -t.priority)
+        .thenComparingDouble(t -> -t.criticalPathCost)
+        .thenComparingLong(t -> t.sequence);
+    
     protected static class TaskWithDependencies {
         boolean offPool;
         @Nonnull Runnable task;
         @Nonnull IdentityHashSet<Runnable> dependencies;
     }
     
+    protected final @CheckForNull ThreadPoolService service;
     protected @Nonnull String threadNamePrefix = getClass().getSimpleName();
     protected int threadCount = Runtime.getRuntime().availableProcessors();
+    protected int runningOnServiceCount = 0;
     protected final IdentityHashSet<Runnable> readyTasks = new IdentityHashSet<>();
     protected final IdentityHashSet<Runnable> executingTasks = new IdentityHashSet<>();
     protected final Map<Runnable, List<TaskWithDependencies>> blockerTasks = new IdentityHashMap<>();
     protected final IdentityHashSet<Runnable> blockedTasks = new IdentityHashSet<>();
     protected final IdentityHashSet<ScheduleDependencyInAnyOrder> doneAnyOrderDependencies = new IdentityHashSet<>();
-    protected @CheckForNull Throwable exceptionOrNull = null;
+    protected volatile @CheckForNull Throwable exceptionOrNull = null;
+    protected boolean interruptOnFailure = false;
+    /** Threads currently executing this pool's tasks, on the pool or off pool, see {@link #interruptTaskThreads()} */
+    protected final Map<Thread, Runnable> taskThreads = new ConcurrentHashMap<>();
+    protected volatile boolean interrupting = false;
+    
+    // Prioritization, only used once a PrioritizedTask has been added, or critical path prioritization is enabled
+    protected boolean prioritized = false;
+    protected boolean criticalPathPrioritization = false;
+    protected final PriorityQueue<ReadyTask> readyQueue = new PriorityQueue<>(readyTaskOrder);
+    protected final Map<Runnable, ReadyTask> readyQueueEntries = new IdentityHashMap<>();
+    protected boolean readyQueueStale = false;  // prioritization has been enabled or changed, so the queue must be rebuilt
+    protected final Map<Runnable, Double> criticalPathCostCache = new IdentityHashMap<>();
+    protected final Map<Runnable, TaskWithDependencies> blockedTaskDependencies = new IdentityHashMap<>();
+    protected long readyTaskSequence = 0;
+    
+    // Resource limits; tasks over their limit wait in resourceWaitingTasks (and blockedTasks) rather than readyTasks
+    protected final Map<String, Integer> resourceLimits = new ConcurrentHashMap<>();
+    protected final Map<String, Integer> resourceUsage = new HashMap<>();  // ready or executing tasks of each class
+    protected final Map<String, Deque<Runnable>> resourceWaitingTasks = new HashMap<>();
+    protected final IdentityHashSet<Runnable> resourceUsingTasks = new IdentityHashSet<>();
+    
+    // Task sources, see addTaskSource
+    protected final Deque<Iterator<? extends Runnable>> taskSources = new ConcurrentLinkedDeque<>();
+    protected boolean drawingFromTaskSources = false;
+    protected int taskSourceBufferSize = 100;
+    
+    // Work-stealing mode
+    protected boolean workStealing = false;
+    protected volatile List<RunnerRunnable> runners = emptyList();
+    protected final ThreadLocal<RunnerRunnable> currentRunner = new ThreadLocal<>();
+    protected final AtomicInteger idleThreadCount = new AtomicInteger();
+    /** Tasks in threads' local deques, or executing having been taken from them; value is one of the two below */
+    protected final Map<IdentityKey, Object> locallyScheduledTasks = new ConcurrentHashMap<>();
+    protected static final Object noDependents = new Object();
+    protected static final Object hasDependents = new Object();
+    
+    // Metrics, null unless enabled
+    protected @CheckForNull Map<IdentityKey, TaskMetrics> taskMetrics = null;
+    protected final ThreadLocal<Runnable> currentTask = new ThreadLocal<>();
+    protected long executeStartNanos = 0, executeEndNanos = 0;
+    
+    /** Compares the object it wraps by identity, as {@link IdentityHashSet} does, for use in concurrent maps */
+    protected static final class IdentityKey {
+        final Object object;
+        IdentityKey(Object object) { this.object = object; }
+        @Override public int hashCode() { return System.identityHashCode(object); }
+        @Override public boolean equals(Object other) { return other instanceof IdentityKey && ((IdentityKey) other).object == object; }
+    }
+    
+    /** Tasks are executed by threads created by {@link #execute()} */
+    public ThreadPool() {
+        this.service = null;
+    }
+    
+    /** 
+     * Tasks are executed by the threads of the service, shared with other pools ("jobs") running on the same service.
+     * By default, all the service's threads may be used by this pool, see {@link #setThreadCount(int)}.
+     */
+    public ThreadPool(@Nonnull ThreadPoolService service) {
+        this.service = service;
+        this.threadCount = Integer.MAX_VALUE;
+    }
+    
+    protected synchronized boolean isFinished() {
+        return executingTasks.isEmpty() && readyTasks.isEmpty() && locallyScheduledTasks.isEmpty()
+            && taskSources.isEmpty() && ! drawingFromTaskSources;
+    }
+    
+    protected boolean anyLocalTasks() {
+        for (RunnerRunnable r : runners) if ( ! r.localTasks.isEmpty()) return true;
+        return false;
+    }
+    
+    /** 
+     * Idle threads wait on this object's monitor. Each task which becomes ready wakes one thread;
+     * when the pool has finished or failed, all threads are woken so they can exit.
+     */
+    protected synchronized void wakeIdleThreads(int newlyReadyTaskCount) {
+        if (exceptionOrNull != null || isFinished()) notifyAll();
+        else for (int i = 0; i < newlyReadyTaskCount; i++) notify();
+        if (service != null && newlyReadyTaskCount > 0) service.onTasksReady(newlyReadyTaskCount);
+    }
+    
+    /** @return null if there is no ready task, or the pool has failed, or is already using all its threads on the service */
+    protected synchronized @CheckForNull Runnable takeReadyTask() {
+        if (exceptionOrNull != null || readyTasks.isEmpty()) return null;
+        if (service != null && runningOnServiceCount >= threadCount) return null;
+        Runnable task;
+        if (prioritized) {
+            if (readyQueueStale) rebuildReadyQueue();
+            ReadyTask entry;
+            do entry = readyQueue.remove(); while (entry.superseded);
+            task = entry.task;
+            readyQueueEntries.remove(task);
+        }
+        else task = readyTasks.iterator().next();
+        readyTasks.remove(task);
+        executingTasks.add(task);
+        if (service != null) runningOnServiceCount++;
+        return task;
+    }
+    
+    protected double getEstimatedCost(@Nonnull Runnable task) {
+        return task instanceof CostEstimatedTask ? ((CostEstimatedTask) task).getEstimatedCost() : 1;
+    }
+    
+    /** 
+     * @return the cost of this task plus the highest cost of any chain of tasks which depend on it.
+     * Iterative rather than recursive, as chains may be longer than the stack allows.
+     */
+    protected double getCriticalPathCost(@Nonnull Runnable root) {
+        Deque<Runnable> stack = new ArrayDeque<>();
+        stack.push(root);
+        while ( ! stack.isEmpty()) {
+            Runnable task = stack.peek();
+            if (criticalPathCostCache.containsKey(task)) { stack.pop(); continue; }
+            List<TaskWithDependencies> dependents = blockerTasks.getOrDefault(task, emptyList());
+            boolean dependentsKnown = true;
+            for (TaskWithDependencies d : dependents)
+                if ( ! criticalPathCostCache.containsKey(d.task)) { stack.push(d.task); dependentsKnown = false; }
+            if (dependentsKnown) {
+                double downstreamCost = 0;
+                for (TaskWithDependencies d : dependents) downstreamCost = Math.max(downstreamCost, criticalPathCostCache.get(d.task));
+                criticalPathCostCache.put(task, getEstimatedCost(task) + downstreamCost);
+                stack.pop();
+            }
+        }
+        return criticalPathCostCache.get(root);
+    }
+    
+    protected @Nonnull ReadyTask newReadyTask(@Nonnull Runnable task) {
+        ReadyTask result = new ReadyTask();
+        result.task = task;
+        result.priority = task instanceof PrioritizedTask ? ((PrioritizedTask) task).getPriority() : 0;
+        result.criticalPathCost = criticalPathPrioritization ? getCriticalPathCost(task) : 0;
+        result.sequence = readyTaskSequence++;
+        return result;
+    }
+    
+    protected synchronized void addToReadyQueue(@Nonnull ReadyTask entry) {
+        readyQueue.add(entry);
+        readyQueueEntries.put(entry.task, entry);
+    }
+    
+    protected synchronized void rebuildReadyQueue() {
+        criticalPathCostCache.clear();
+        readyQueue.clear();
+        readyQueueEntries.clear();
+        for (Runnable task : readyTasks) addToReadyQueue(newReadyTask(task));
+        readyQueueStale = false;
+    }
+    
+    /**
+     * A task has been added which depends on other tasks, so their critical paths, and those of the tasks they depend on,
+     * may have become longer. Only these tasks are updated; ready tasks among them are moved in the queue.
+     */
+    protected synchronized void updateCriticalPathCosts(@Nonnull TaskWithDependencies added) {
+        getCriticalPathCost(added.task);
+        Deque<Runnable> work = new ArrayDeque<>();
+        for (Runnable dep : added.dependencies) work.push(dep);
+        while ( ! work.isEmpty()) {
+            Runnable task = work.pop();
+            Double oldCost = criticalPathCostCache.get(task);
+            if (oldCost == null) continue;  // not computed yet, nor for tasks it depends on
+            double downstreamCost = 0;
+            for (TaskWithDependencies d : blockerTasks.getOrDefault(task, emptyList()))
+                downstreamCost = Math.max(downstreamCost, getCriticalPathCost(d.task));
+            double newCost = getEstimatedCost(task) + downstreamCost;
+            if (newCost <= oldCost) continue;
+            criticalPathCostCache.put(task, newCost);
+            
+            ReadyTask oldEntry = readyQueueEntries.get(task);
+            if (oldEntry != null) {
+                oldEntry.superseded = true;
+                ReadyTask newEntry = new ReadyTask();
+                newEntry.task = task;
+                newEntry.priority = oldEntry.priority;
+                newEntry.criticalPathCost = newCost;
+                newEntry.sequence = oldEntry.sequence;
+                addToReadyQueue(newEntry);
+            }
+            
+            TaskWithDependencies blocked = blockedTaskDependencies.get(task);
+            if (blocked != null) for (Runnable dep : blocked.dependencies) work.push(dep);
+        }
+    }
+    
+    /** Tasks which have been added but have not completed, whether ready, waiting for dependencies or resources, or executing */
+    protected synchronized int getOutstandingTaskCount() {
+        return readyTasks.size() + blockedTasks.size() + executingTasks.size() + locallyScheduledTasks.size();
+    }
+    
+    /** @return true if a thread should draw from the task sources, rather than wait for tasks to become ready */
+    protected synchronized boolean canDrawFromTaskSources() {
+        return ! taskSources.isEmpty() && ! drawingFromTaskSources && exceptionOrNull == null
+            && getOutstandingTaskCount() * 2 < taskSourceBufferSize;
+    }
+    
+    /** 
+     * If fewer than half of {@link #setTaskSourceBufferSize(int)} tasks are outstanding, takes tasks from the first source until
+     * that many are outstanding. The source is called without the lock held, by one thread at a time.
+     */
+    protected void drawFromTaskSources() {
+        if (taskSources.isEmpty()) return;
+        Iterator<? extends Runnable> source;
+        int count;
+        synchronized (this) {
+            if ( ! canDrawFromTaskSources()) return;
+            drawingFromTaskSources = true;
+            source = taskSources.getFirst();
+            count = taskSourceBufferSize - getOutstandingTaskCount();
+        }
+        
+        List<Runnable> batch = new ArrayList<>();
+        boolean exhausted = false;
+        try {
+            while (batch.size() < count && ! (exhausted = ! source.hasNext())) batch.add(source.next());
+        }
+        catch (Throwable e) { onTaskFailed(e); }
+        finally {
+            synchronized (this) {
+                drawingFromTaskSources = false;
+                if (exhausted) taskSources.remove(source);
+                if (batch.isEmpty()) wakeIdleThreads(0);
+                else addTaskWithDependencies(emptyList(), batch.toArray(new Runnable[0]));
+            }
+        }
+    }
+    
+    protected @CheckForNull String getLimitedResourceClass(@Nonnull Runnable task) {
+        if ( ! (task instanceof ResourceLimitedTask)) return null;
+        String resourceClass = ((ResourceLimitedTask) task).getResourceClass();
+        return resourceLimits.containsKey(resourceClass) ? resourceClass : null;
+    }
+    
+    /** @return false if the task must wait until another task of the same resource class has completed */
+    protected synchronized boolean acquireResource(@Nonnull Runnable task) {
+        String resourceClass = getLimitedResourceClass(task);
+        if (resourceClass == null) return true;
+        int usage = resourceUsage.getOrDefault(resourceClass, 0);
+        if (usage >= resourceLimits.get(resourceClass)) {
+            resourceWaitingTasks.computeIfAbsent(resourceClass, k -> new ArrayDeque<>()).addLast(task);
+            blockedTasks.add(task);  // so that tasks depending on it wait for it
+            return false;
+        }
+        resourceUsage.put(resourceClass, usage + 1);
+        resourceUsingTasks.add(task);
+        return true;
+    }
+    
+    /** @return the number of waiting tasks which have now become ready */
+    protected synchronized int releaseResource(@Nonnull Runnable task) {
+        if ( ! resourceUsingTasks.contains(task)) return 0;
+        resourceUsingTasks.remove(task);
+        String resourceClass = ((ResourceLimitedTask) task).getResourceClass();
+        resourceUsage.merge(resourceClass, -1, Integer::sum);
+        Deque<Runnable> waiting = resourceWaitingTasks.get(resourceClass);
+        if (waiting == null || waiting.isEmpty()) return 0;
+        Runnable next = waiting.removeFirst();
+        blockedTasks.remove(next);
+        addReadyTask(next);
+        return 1;
+    }
+    
+    protected synchronized void addReadyTask(@Nonnull Runnable task) {
+        if (readyTasks.contains(task)) return;
+        if ( ! acquireResource(task)) return;
+        recordTaskReady(task);
+        readyTasks.add(task);
+        if (task instanceof PrioritizedTask && ! prioritized) { prioritized = true; readyQueueStale = true; }
+        if (prioritized && ! readyQueueStale) addToReadyQueue(newReadyTask(task));
+    }
+    
+    /** Called once the task has been registered as depending on its dependencies */
+    protected synchronized void onBlockedTaskAdded(@Nonnull TaskWithDependencies d) {
+        blockedTaskDependencies.put(d.task, d);
+        if (d.task instanceof PrioritizedTask && ! prioritized) { prioritized = true; readyQueueStale = true; }
+        if (criticalPathPrioritization && ! readyQueueStale) updateCriticalPathCosts(d);
+    }
+    
+    /** @param local whether the task was taken from a thread's local deque, or from {@link #takeReadyTask()} */
+    protected void runTask(@Nonnull Runnable task, boolean local) {
+        recordTaskStart(task, false);
+        onTaskThreadStarted(task);
+        try {
+            task.run(); 
+        }
+        // Also catch e.g. StackOverflowExceptions here, 
+        // otherwise ThreadPool.execute appears to "succeed" but stuff that should have happened has not happened.
+        catch (Throwable e) {
+            onTaskFailed(e);
+        }
+        finally {
+            onTaskThreadEnded();
+            recordTaskEnd(task);
+            if (local) onLocalTaskCompleted(task);
+            else if (service == null) onTaskCompleted(task);
+            else synchronized (this) {
+                runningOnServiceCount--;
+                onTaskCompleted(task);
+                if (runningOnServiceCount == threadCount - 1 && ! readyTasks.isEmpty()) service.onTasksReady(1);
+            }
+        }
+    }
+    
+    protected void onTaskThreadStarted(@Nonnull Runnable task) {
+        taskThreads.put(Thread.currentThread(), task);
+        if (interrupting) Thread.currentThread().interrupt();  // started after the other threads were interrupted
+    }
+    
+    /** An interrupt can only be delivered while the thread is registered, so clearing it here means it can't affect the next task */
+    protected void onTaskThreadEnded() {
+        taskThreads.remove(Thread.currentThread());
+        Thread.interrupted();
+    }
+    
+    protected void interruptTaskThreads() {
+        interrupting = true;
+        for (Thread t : taskThreads.keySet())
+            if (t != Thread.currentThread())
+                taskThreads.computeIfPresent(t, (thread, task) -> { thread.interrupt(); return task; });
+    }
+    
+    /** The first exception is the one thrown by {@link #execute()}, not those caused by the cancellation of other tasks */
+    protected void onTaskFailed(@Nonnull Throwable e) {
+        synchronized (this) {
+            if (exceptionOrNull != null) return;
+            exceptionOrNull = e;
+        }
+        if (interruptOnFailure) interruptTaskThreads();
+    }
     
     protected synchronized void onTaskCompleted(Runnable task) {
         Logger.getLogger(getClass()).debug("--- Processing removal of " + task + ":");
         
         executingTasks.remove(task);
+        int newlyReadyTaskCount = releaseResource(task);
         
-        if (exceptionOrNull != null) return;
+        if (exceptionOrNull != null) { wakeIdleThreads(0); return; }
         
         if (task instanceof ScheduleDependencyInAnyOrder) 
             doneAnyOrderDependencies.add((ScheduleDependencyInAnyOrder) task);
@@ -100,68 +521,261 @@ public class ThreadPool {
         for (TaskWithDependencies d : blockerTasks.getOrDefault(task, emptyList())) {
             d.dependencies.remove(task);
             if (d.dependencies.isEmpty()) {
+                blockedTasks.remove(d.task);
+                blockedTaskDependencies.remove(d.task);
                 if (d.offPool) {
                     Logger.getLogger(getClass()).debug("Will add "+d.task+" (off pool)");
                     addTaskOffPool(d.task);
                 } else {
                     Logger.getLogger(getClass()).debug("Will add "+d.task+" to ready tasks");
-                    readyTasks.add(d.task);
+                    addReadyTask(d.task);
+                    newlyReadyTaskCount++;
                 }
-                blockedTasks.remove(d.task);
             }
         }
         blockerTasks.remove(task);
+        criticalPathCostCache.remove(task);
+        wakeIdleThreads(newlyReadyTaskCount);
 
         Logger.getLogger(getClass()).debug(this);
     }
     
+    /** 
+     * Processing of dependents requires the lock. The task's entry is only removed without the lock if no task
+     * has been registered as depending on it, see {@link #isScheduledLocally(Runnable)}.
+     */
+    protected void onLocalTaskCompleted(Runnable task) {
+        IdentityKey key = new IdentityKey(task);
+        if (task instanceof ScheduleDependencyInAnyOrder || exceptionOrNull != null
+                || ! locallyScheduledTasks.remove(key, noDependents)) {
+            synchronized (this) {
+                locallyScheduledTasks.remove(key);
+                onTaskCompleted(task);
+            }
+        }
+        if (locallyScheduledTasks.isEmpty()) wakeIdleThreads(0);
+    }
+    
+    /** 
+     * If the current thread is one of this pool's threads in work-stealing mode, adds the task to its local deque,
+     * without acquiring the pool's lock (unless there are idle threads to wake).
+     * @return false if the task must be added normally
+     */
+    protected boolean addTaskToLocalDeque(Runnable task) {
+        RunnerRunnable runner = currentRunner.get();
+        if ( ! workStealing || runner == null || getLimitedResourceClass(task) != null) return false;
+        if (locallyScheduledTasks.putIfAbsent(new IdentityKey(task), noDependents) == null) {
+            recordTaskReady(task);
+            runner.localTasks.addLast(task);
+            if (idleThreadCount.get() > 0) synchronized (this) { notify(); }
+        }
+        return true;
+    }
+    
+    /** 
+     * Called with the lock held, when a task is about to be registered as depending on this task.
+     * Marks it, so that its completion is processed with the lock held.
+     */
+    protected boolean isScheduledLocally(Runnable task) {
+        return locallyScheduledTasks.computeIfPresent(new IdentityKey(task), (k, v) -> hasDependents) != null;
+    }
+    
+    protected @CheckForNull TaskMetrics getTaskMetrics(@Nonnull Runnable task) {
+        Map<IdentityKey, TaskMetrics> metrics = taskMetrics;
+        if (metrics == null) return null;
+        return metrics.computeIfAbsent(new IdentityKey(task), k -> new TaskMetrics(task));
+    }
+    
+    protected void recordTaskAdded(@Nonnull Runnable task, @Nonnull List<Runnable> dependencies) {
+        TaskMetrics m = getTaskMetrics(task);
+        if (m == null || m.addedNanos != 0) return;
+        m.addedNanos = System.nanoTime();
+        Runnable addedBy = currentTask.get();
+        if (addedBy != null) m.addedBy = getTaskMetrics(addedBy);
+        for (Runnable dep : dependencies) m.dependencies.add(getTaskMetrics(dep));
+    }
+    
+    protected void recordTaskReady(@Nonnull Runnable task) {
+        TaskMetrics m = getTaskMetrics(task);
+        if (m == null) return;
+        if (m.addedNanos == 0) recordTaskAdded(task, emptyList());
+        m.readyNanos = System.nanoTime();
+    }
+    
+    protected void recordTaskStart(@Nonnull Runnable task, boolean offPool) {
+        TaskMetrics m = getTaskMetrics(task);
+        if (m == null) return;
+        m.threadName = Thread.currentThread().getName();
+        m.offPool = offPool;
+        m.startNanos = System.nanoTime();
+        currentTask.set(task);
+    }
+    
+    protected void recordTaskEnd(@Nonnull Runnable task) {
+        TaskMetrics m = getTaskMetrics(task);
+        if (m == null) return;
+        m.endNanos = System.nanoTime();
+        currentTask.remove();
+    }
+    
     protected class RunnerRunnable implements Runnable {
+        /** Only used in work-stealing mode. This thread takes from the end, other threads steal from the start. */
+        protected final Deque<Runnable> localTasks = new ConcurrentLinkedDeque<>();
+        
+        protected @CheckForNull Runnable stealTask() {
+            for (RunnerRunnable r : runners) {
+                if (r == this) continue;
+                Runnable task = r.localTasks.pollFirst();
+                if (task != null) return task;
+            }
+            return null;
+        }
+        
         @Override public void run() {
-            while (true) {
-                final @CheckForNull Runnable nextTaskOrNull;
-                synchronized (ThreadPool.this) {
-                    if (executingTasks.isEmpty() && readyTasks.isEmpty()) break; // It's finished successfully
-                    if (exceptionOrNull != null) break;  // It's failed, no point continuing
-                    nextTaskOrNull = readyTasks.isEmpty() ? null : readyTasks.iterator().next();
-                    if (nextTaskOrNull != null) { readyTasks.remove(nextTaskOrNull); executingTasks.add(nextTaskOrNull); }
-                }
-                
-                if (nextTaskOrNull != null) {
-                    try {
-                        nextTaskOrNull.run(); 
+            currentRunner.set(this);
+            try {
+                while (true) {
+                    drawFromTaskSources();
+                    
+                    @CheckForNull Runnable nextTaskOrNull = null;
+                    boolean local = false;
+                    if (workStealing) {
+                        if (exceptionOrNull != null) break;
+                        nextTaskOrNull = localTasks.pollLast();
+                        local = nextTaskOrNull != null;
                     }
-                    // Also catch e.g. StackOverflowExceptions here, 
-                    // otherwise ThreadPool.execute appears to "succeed" but stuff that should have happened has not happened.
-                    catch (Throwable e) {
+                    if (nextTaskOrNull == null) {
                         synchronized (ThreadPool.this) {
-                            exceptionOrNull = e;
+                            if (isFinished()) break; // It's finished successfully
+                            if (exceptionOrNull != null) break;  // It's failed, no point continuing
+                            nextTaskOrNull = takeReadyTask();
                         }
                     }
-                    finally {
-                        onTaskCompleted(nextTaskOrNull);
+                    if (nextTaskOrNull == null && workStealing) {
+                        nextTaskOrNull = stealTask();
+                        local = nextTaskOrNull != null;
+                    }
+                    
+                    if (nextTaskOrNull != null) {
+                        runTask(nextTaskOrNull, local);
+                    } else {
+                        // it might be that other tasks are running, and they will produce lots more tasks
+                        // so keep the thread alive, and wait until a task becomes ready or all work is done.
+                        synchronized (ThreadPool.this) {
+                            idleThreadCount.incrementAndGet();  // before checking local tasks, see addTaskToLocalDeque
+                            if (readyTasks.isEmpty() && ! isFinished() && exceptionOrNull == null && ! anyLocalTasks()
+                                    && ! canDrawFromTaskSources())
+                                try { ThreadPool.this.wait(); }
+                                catch (InterruptedException ignored) { }
+                            idleThreadCount.decrementAndGet();
+                        }
                     }
-                } else {
-                    // it might be that other tasks are running, and they will produce lots more tasks
-                    // so keep the thread alive and polling until all work is done.
-                    try { Thread.sleep(10); }
-                    catch (InterruptedException ignored) { }
                 }
             }
+            finally {
+                currentRunner.remove();
+            }
         }
     }
     
+    /** If the pool runs on a {@link ThreadPoolService}, the maximum number of the service's threads this pool uses at once */
     public void setThreadCount(int count) { threadCount = count; }
     public void setThreadNamePrefix(String prefix) { threadNamePrefix = prefix; }
     
+    /**
+     * In work-stealing mode, each thread has its own deque of tasks. Tasks added with {@link #addTask(Runnable...)} 
+     * by a task running in this pool are added to the deque of that thread, which executes them newest-first,
+     * and idle threads steal the oldest tasks from other threads' deques. Adding, executing and completing such tasks 
+     * does not acquire the pool's lock, which otherwise limits throughput with many threads and many small tasks. 
+     * Tasks with dependencies, tasks which other tasks depend on, and off-pool tasks behave as before.
+     */
+    public void setWorkStealing(boolean workStealing) { this.workStealing = workStealing; }
+    
+    /**
+     * At most "maxConcurrent" tasks implementing {@link ResourceLimitedTask} with this resource class are executed at once;
+     * other tasks still use all threads. For example, limit "db" to the size of the connection pool.
+     * Tasks over the limit wait, in the order they became ready. Off-pool tasks are not limited. 
+     * Should be called before tasks of this class are added.
+     */
+    public void setResourceLimit(@Nonnull String resourceClass, int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be at least 1");
+        resourceLimits.put(resourceClass, maxConcurrent);
+    }
+    
+    /** @return a task, which should be added instead of "task", and used as the dependency of other tasks */
+    public static @Nonnull ResourceLimitedTask withResourceClass(@Nonnull String resourceClass, @Nonnull Runnable task) {
+        return new ResourceLimitedTask() {
+            @Override public @Nonnull String getResourceClass() { return resourceClass; }
+            @Override public void run() { task.run(); }
+            @Override public String toString() { return task.toString(); }
+        };
+    }
+    
+    /** 
+     * When a task fails, interrupt the threads of other running tasks, including off-pool tasks, 
+     * so that {@link #execute()} does not wait for them to complete. Off by default, as not all tasks can be interrupted safely.
+     */
+    public void setInterruptOnFailure(boolean interrupt) { interruptOnFailure = interrupt; }
+    
+    /** 
+     * Whether a task has failed, or {@link #cancel()} has been called. No further tasks will be started.
+     * Long-running tasks can check this periodically, and return early if set.
+     */
+    public boolean isCancelled() { return exceptionOrNull != null; }
+    
+    /** 
+     * Can be called from any thread, including from tasks. No further tasks are started, running tasks are interrupted,
+     * and {@link #execute()} throws an exception with a {@link CancellationException} as its cause.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (exceptionOrNull == null) exceptionOrNull = new CancellationException(getClass().getSimpleName() + " cancelled");
+            wakeIdleThreads(0);
+        }
+        interruptTaskThreads();
+    }
+    
+    /**
+     * Records, for each task, when it was added, became ready, started and ended, available after {@link #execute()}
+     * from {@link #getMetrics()}. Must be called before tasks are added. Costs a map lookup per task and event.
+     */
+    public void setMetricsEnabled(boolean enabled) { taskMetrics = enabled ? new ConcurrentHashMap<>() : null; }
+    
+    /** @return the timings of the last {@link #execute()}, which must have been called, see {@link #setMetricsEnabled(boolean)} */
+    public @Nonnull ThreadPoolMetrics getMetrics() {
+        Map<IdentityKey, TaskMetrics> metrics = taskMetrics;
+        if (metrics == null) throw new IllegalStateException("Metrics are not enabled");
+        if (executeEndNanos == 0) throw new IllegalStateException("execute() has not been called");
+        int threads = service == null ? threadCount : Math.min(threadCount, service.threads.size());
+        return new ThreadPoolMetrics(executeStartNanos, executeEndNanos, threads, new ArrayList<>(metrics.values()));
+    }
+    
+    /**
+     * Of the ready tasks, executes first those with the longest chain of tasks depending on them, so that long chains
+     * are not started last. The length of a chain is the sum of the {@link CostEstimatedTask#getEstimatedCost() costs}
+     * of its tasks. Tasks implementing {@link PrioritizedTask} are still ordered by their priority first.
+     * When a task with dependencies is added, only the chains of the tasks it depends on, directly or indirectly,
+     * are recomputed, so tasks can also be added while the pool is executing.
+     * Tasks in work-stealing threads' local deques are not prioritized.
+     */
+    public synchronized void setCriticalPathPrioritization(boolean enabled) {
+        criticalPathPrioritization = enabled;
+        if (enabled) prioritized = true;
+        readyQueueStale = true;
+    }
+    
     public synchronized void addTaskWithDependencies(List<? extends Runnable> dependencies, Runnable... after) {
         List<Runnable> stillScheduledDependencies = dependencies.stream()
             .filter(dep -> dep instanceof ScheduleDependencyInAnyOrder ||
-                executingTasks.contains(dep) || readyTasks.contains(dep) || blockedTasks.contains(dep))
+                executingTasks.contains(dep) || readyTasks.contains(dep) || blockedTasks.contains(dep) || isScheduledLocally(dep))
             .filter(dep -> ! (dep instanceof ScheduleDependencyInAnyOrder && doneAnyOrderDependencies.contains((ScheduleDependencyInAnyOrder) dep)))
             .collect(Collectors.toList());
 
+        for (Runnable job : after) recordTaskAdded(job, stillScheduledDependencies);
+
         if (stillScheduledDependencies.isEmpty()) {
-            readyTasks.addAll(after);
+            for (Runnable job : after) addReadyTask(job);
+            wakeIdleThreads(after.length);
         } else {
             for (Runnable job : after) {
                 blockedTasks.add(job);
@@ -174,6 +788,7 @@ public class ThreadPool {
                     blockerTasks.putIfAbsent(dep, new ArrayList<>());
                     blockerTasks.get(dep).add(d);
                 }
+                onBlockedTaskAdded(d);
             }
         }
     }
@@ -186,7 +801,26 @@ public class ThreadPool {
 
     public void addTask(Runnable... tasks) {
         for (Runnable r : tasks)
-            addTaskWithDependencies(emptyList(), r);
+            if ( ! addTaskToLocalDeque(r))
+                addTaskWithDependencies(emptyList(), r);
+    }
+
+    /**
+     * Tasks are taken from the source as threads become free, so that no more than {@link #setTaskSourceBufferSize(int)}
+     * tasks are outstanding at once (ready, executing, or waiting for dependencies or a {@link #setResourceLimit resource}),
+     * however many tasks it has. The source is not called concurrently.
+     * Sources are used one after the other, and removed once they have no more tasks.
+     * For example, a crawler can read the URLs to fetch from a file or a database, rather than adding millions of tasks.
+     */
+    public synchronized void addTaskSource(@Nonnull Iterator<? extends Runnable> source) {
+        taskSources.addLast(source);
+        wakeIdleThreads(1);
+    }
+    
+    /** The number of outstanding tasks up to which tasks are taken from sources, see {@link #addTaskSource(Iterator)}; default 100 */
+    public void setTaskSourceBufferSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+        taskSourceBufferSize = size;
     }
 
     /** @return the runnable that's been scheduled for execution, as convenience */
@@ -199,6 +833,17 @@ public class ThreadPool {
         addTask(tasks.toArray(new Runnable[0]));
     }
 
+    /** @return the task, which can be used as a dependency, and whose value can be read by tasks depending on it */
+    public @Nonnull <T> CallableTask<T> addCallable(@Nonnull Callable<T> callable) {
+        return addTask(new CallableTask<>(callable));
+    }
+
+    public @Nonnull <T> CallableTask<T> addCallableWithDependencies(
+        @Nonnull List<? extends Runnable> dependencies, @Nonnull Callable<T> callable
+    ) {
+        return addTaskWithDependencies(dependencies, new CallableTask<>(callable));
+    }
+
     /**
      * Add a task which runs in its own thread. 
      * Intended for CPU-bound thread pools which require a task to be completed which does not 
@@ -207,16 +852,19 @@ public class ThreadPool {
     public synchronized void addTaskOffPool(Runnable... tasks) {
         for (Runnable t : tasks) {
             executingTasks.add(t);
+            recordTaskReady(t);
             new Thread(() -> {
+                recordTaskStart(t, true);
+                onTaskThreadStarted(t);
                 try {
                     t.run();
                 }
                 catch (Exception e) {
-                    synchronized (ThreadPool.this) {
-                        exceptionOrNull = e;
-                    }
+                    onTaskFailed(e);
                 }
                 finally {
+                    onTaskThreadEnded();
+                    recordTaskEnd(t);
                     onTaskCompleted(t);
                 }
             }).start();
@@ -232,10 +880,12 @@ public class ThreadPool {
     public synchronized void addTaskWithDependenciesOffPool(List<? extends Runnable> dependencies, Runnable... after) {
         List<Runnable> stillScheduledDependencies = dependencies.stream()
             .filter(dep -> dep instanceof ScheduleDependencyInAnyOrder || 
-                executingTasks.contains(dep) || readyTasks.contains(dep) || blockedTasks.contains(dep))
+                executingTasks.contains(dep) || readyTasks.contains(dep) || blockedTasks.contains(dep) || isScheduledLocally(dep))
             .filter(dep -> ! (dep instanceof ScheduleDependencyInAnyOrder && doneAnyOrderDependencies.contains((ScheduleDependencyInAnyOrder) dep)))
             .collect(Collectors.toList());
 
+        for (Runnable job : after) recordTaskAdded(job, stillScheduledDependencies);
+
         if (stillScheduledDependencies.isEmpty()) {
             addTaskOffPool(after);
         } else {
@@ -251,6 +901,7 @@ public class ThreadPool {
                     blockerTasks.putIfAbsent(dep, new ArrayList<>());
                     blockerTasks.get(dep).add(d);
                 }
+                onBlockedTaskAdded(d);
             }
         }
     }
@@ -260,16 +911,104 @@ public class ThreadPool {
         return after;
     }
 
-    /** See {@link #unwrapException(RuntimeException, Class)} to how to handle checked exceptions */
+    /** 
+     * Executes the tasks, and returns once all tasks have completed, or throws an exception once any task has failed. 
+     * See {@link #unwrapException(RuntimeException, Class)} to how to handle checked exceptions 
+     */
     public void execute() {
-        List<Thread> threads = IntStream.range(0, threadCount)
-            .mapToObj(i -> new Thread(new RunnerRunnable(), threadNamePrefix+"-thread"+i))
-            .collect(Collectors.toList());
-        for (Thread t : threads) t.start();
-        for (Thread t : threads) try { t.join(); } catch (InterruptedException e) { exceptionOrNull = e; }
+        executeStartNanos = System.nanoTime();
+        try {
+            if (service != null) { executeOnService(); return; }
+            runners = IntStream.range(0, threadCount).mapToObj(i -> new RunnerRunnable()).collect(Collectors.toList());
+            List<Thread> threads = IntStream.range(0, threadCount)
+                .mapToObj(i -> new Thread(runners.get(i), threadNamePrefix+"-thread"+i))
+                .collect(Collectors.toList());
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) try { t.join(); } catch (InterruptedException e) { exceptionOrNull = e; }
+            if (exceptionOrNull != null) throw new RuntimeException(exceptionOrNull);
+        }
+        finally {
+            executeEndNanos = System.nanoTime();
+        }
+    }
+    
+    /** In the case of failure, also waits for tasks which are still executing */
+    protected void executeOnService() {
+        service.addJob(this);
+        try {
+            synchronized (this) {
+                while ( ! isFinished() && ! (exceptionOrNull != null && executingTasks.isEmpty()))
+                    try { wait(); }
+                    catch (InterruptedException e) { exceptionOrNull = e; }
+            }
+        }
+        finally {
+            service.removeJob(this);
+        }
         if (exceptionOrNull != null) throw new RuntimeException(exceptionOrNull);
     }
     
+    /** Called by the service, when it is closed while this pool is executing */
+    protected synchronized void onServiceClosed() {
+        if (exceptionOrNull == null) exceptionOrNull = new IllegalStateException(service + " has been closed");
+        wakeIdleThreads(0);
+    }
+    
+    /**
+     * Applies "function" to each input, in parallel, on a new pool. 
+     * The inputs are iterated once, so any type of list, such as a {@link LinkedList}, is efficient.
+     * @return the results, in the same order as the inputs 
+     */
+    public static @Nonnull <A, B> List<B> map(@Nonnull List<A> inputs, @Nonnull Function<? super A, ? extends B> function) {
+        Object[] results = new Object[inputs.size()];
+        Iterator<A> inputIterator = inputs.iterator();
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadNamePrefix(ThreadPool.class.getSimpleName() + ".map");
+        pool.addTaskSource(new Iterator<Runnable>() {
+            int nextIndex = 0;
+            @Override public boolean hasNext() { return inputIterator.hasNext(); }
+            @Override public Runnable next() {
+                int i = nextIndex++;
+                A input = inputIterator.next();
+                return () -> results[i] = function.apply(input);
+            }
+        });
+        pool.execute();
+        
+        @SuppressWarnings("unchecked") List<B> result = (List<B>) Arrays.asList(results);
+        return result;
+    }
+    
+    /**
+     * Processes the inputs in parallel on a new pool. Each thread has its own accumulator, created by "newAccumulator",
+     * into which it accumulates the inputs it processes, so that threads do not contend for a shared result. 
+     * Finally the accumulators are combined.
+     *    <p>
+     * Which inputs are accumulated by which thread, and the order in which the accumulators are combined,
+     * are not deterministic, so "combine" must be associative and commutative, for example adding counts,
+     * otherwise the result may differ between runs. To retain the order of the inputs, use {@link #map(List, Function)}.
+     *    <p>
+     * For example, to count words:
+     * <pre>
+     *   Map&lt;String, Integer&gt; counts = ThreadPool.mapReduce(lines, HashMap::new,
+     *       (m, line) -&gt; { for (String w : line.split(" ")) m.merge(w, 1, Integer::sum); },
+     *       (a, b) -&gt; { b.forEach((w, c) -&gt; a.merge(w, c, Integer::sum)); return a; });
+     * </pre>
+     */
+    public static <A, R> R mapReduce(
+        @Nonnull List<A> inputs, @Nonnull Supplier<R> newAccumulator, 
+        @Nonnull BiConsumer<R, ? super A> accumulate, @Nonnull BinaryOperator<R> combine
+    ) {
+        Map<Thread, R> accumulators = new ConcurrentHashMap<>();
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadNamePrefix(ThreadPool.class.getSimpleName() + ".mapReduce");
+        pool.addTaskSource(inputs.stream().<Runnable>map(input -> () -> 
+            accumulate.accept(accumulators.computeIfAbsent(Thread.currentThread(), t -> newAccumulator.get()), input)).iterator());
+        pool.execute();
+        
+        return accumulators.values().stream().reduce(combine).orElseGet(newAccumulator);
+    }
+
     /** 
      * After {@link #execute()} runs, use this method, once per checked exception that your Runnables might throw.
      * This can handle the case that you wrap your exception in a RuntimeException, or the case that you use @SneakyThrows.
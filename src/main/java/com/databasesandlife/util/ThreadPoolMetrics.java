@@ -0,0 +1,189 @@
+package com.databasesandlife.util;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timings of the tasks executed by a {@link ThreadPool}, see {@link ThreadPool#setMetricsEnabled(boolean)}.
+ *    <p>
+ * For each task, the time is recorded at which it was added, became ready (all its dependencies done), started and ended.
+ * From these, the following questions can be answered:
+ * <ul>
+ *   <li>Was the run CPU-bound? See {@link #getUtilization()} and {@link #getUtilizationOverTime(int)}.
+ *   <li>Were tasks waiting for threads? See {@link TaskMetrics#getQueuedNanos()}.
+ *   <li>Were tasks waiting for dependencies, for example off-pool tasks? See {@link TaskMetrics#getBlockedNanos()}
+ *       and {@link #getCriticalPath()}.
+ * </ul>
+ * The timings can also be viewed as a timeline, in <code>chrome://tracing</code> or Perfetto,
+ * see {@link #writeChromeTrace(Writer)}.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ThreadPoolMetrics {
+
+    public static class TaskMetrics {
+        protected final @Nonnull Runnable task;
+        protected long addedNanos, readyNanos, startNanos, endNanos;
+        protected @CheckForNull String threadName;
+        protected boolean offPool;
+        protected final List<TaskMetrics> dependencies = new ArrayList<>();
+        protected @CheckForNull TaskMetrics addedBy;
+
+        protected TaskMetrics(@Nonnull Runnable task) { this.task = task; }
+
+        public @Nonnull Runnable getTask() { return task; }
+        public @Nonnull String getName() { return task.toString(); }
+        /** Null if the task has not been executed, for example as another task failed */
+        public @CheckForNull String getThreadName() { return threadName; }
+        public boolean isOffPool() { return offPool; }
+        public boolean isExecuted() { return endNanos != 0; }
+        /** The tasks this task had to wait for */
+        public @Nonnull List<TaskMetrics> getDependencies() { return Collections.unmodifiableList(dependencies); }
+        /** The task which was running in the thread which added this task, if any */
+        public @CheckForNull TaskMetrics getAddedBy() { return addedBy; }
+
+        /** Time between being added and all dependencies being done */
+        public long getBlockedNanos() { return readyNanos - addedNanos; }
+        /** Time between being ready and a thread starting to execute it */
+        public long getQueuedNanos() { return startNanos - readyNanos; }
+        public long getRunningNanos() { return endNanos - startNanos; }
+
+        @Override public String toString() {
+            return getName() + " (blocked " + Timer.formatDurationNanos(getBlockedNanos()) +
+                ", queued " + Timer.formatDurationNanos(getQueuedNanos()) +
+                ", running " + Timer.formatDurationNanos(getRunningNanos()) + ")";
+        }
+    }
+
+    protected final long startNanos, endNanos;
+    protected final int threadCount;
+    protected final @Nonnull List<TaskMetrics> tasks;
+
+    protected ThreadPoolMetrics(long startNanos, long endNanos, int threadCount, @Nonnull List<TaskMetrics> tasks) {
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+        this.threadCount = threadCount;
+        this.tasks = new ArrayList<>();
+        for (TaskMetrics t : tasks) if (t.isExecuted()) this.tasks.add(t);
+        this.tasks.sort((a, b) -> Long.compare(a.startNanos, b.startNanos));
+    }
+
+    public long getWallNanos() { return endNanos - startNanos; }
+
+    /** Executed tasks, in the order in which they started */
+    public @Nonnull List<TaskMetrics> getTasks() { return Collections.unmodifiableList(tasks); }
+
+    /** @return between 0 and 1, the fraction of the pool's threads' time spent executing tasks; off-pool tasks are not included */
+    public double getUtilization() {
+        long runningNanos = 0;
+        for (TaskMetrics t : tasks) if ( ! t.offPool) runningNanos += t.getRunningNanos();
+        return getWallNanos() == 0 ? 0 : runningNanos / ((double) threadCount * getWallNanos());
+    }
+
+    /** @return utilization, as for {@link #getUtilization()}, of each of "bucketCount" equal periods of the run */
+    public @Nonnull double[] getUtilizationOverTime(int bucketCount) {
+        double[] result = new double[bucketCount];
+        double bucketNanos = getWallNanos() / (double) bucketCount;
+        if (bucketNanos == 0) return result;
+        for (TaskMetrics t : tasks) {
+            if (t.offPool) continue;
+            for (int b = 0; b < bucketCount; b++) {
+                double bucketStart = startNanos + b * bucketNanos, bucketEnd = bucketStart + bucketNanos;
+                double overlap = Math.min(bucketEnd, t.endNanos) - Math.max(bucketStart, t.startNanos);
+                if (overlap > 0) result[b] += overlap;
+            }
+        }
+        for (int b = 0; b < bucketCount; b++) result[b] /= threadCount * bucketNanos;
+        return result;
+    }
+
+    /**
+     * @return the chain of tasks which determined the duration of the run, first task first: starting from the task which
+     *         ended last, each task is preceded by its dependency which ended last, or if it had no dependencies,
+     *         by the task which added it
+     */
+    public @Nonnull List<TaskMetrics> getCriticalPath() {
+        List<TaskMetrics> result = new ArrayList<>();
+        TaskMetrics current = null;
+        for (TaskMetrics t : tasks) if (current == null || t.endNanos > current.endNanos) current = t;
+        while (current != null) {
+            result.add(current);
+            TaskMetrics previous = current.addedBy;
+            for (TaskMetrics d : current.dependencies)
+                if (d.isExecuted() && (previous == current.addedBy || d.endNanos > previous.endNanos)) previous = d;
+            current = previous != null && previous.isExecuted() ? previous : null;
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    protected static @Nonnull String jsonString(@Nonnull String str) {
+        StringBuilder result = new StringBuilder("\"");
+        for (char c : str.toCharArray()) {
+            if (c == '"' || c == '\\') result.append('\\').append(c);
+            else if (c < 0x20) result.append(String.format("\\u%04x", (int) c));
+            else result.append(c);
+        }
+        return result.append('"').toString();
+    }
+
+    protected static @Nonnull String micros(long nanos) {
+        return String.format("%.3f", nanos / 1000.0);
+    }
+
+    /** Writes the "trace event" JSON format, which can be loaded into <code>chrome://tracing</code> or Perfetto */
+    public void writeChromeTrace(@Nonnull Writer out) throws IOException {
+        Map<String, Integer> threadIds = new LinkedHashMap<>();
+        for (TaskMetrics t : tasks) threadIds.putIfAbsent(t.threadName, threadIds.size() + 1);
+
+        out.write("{\"traceEvents\":[");
+        boolean first = true;
+        for (Map.Entry<String, Integer> e : threadIds.entrySet()) {
+            if ( ! first) out.write(",");
+            first = false;
+            out.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + e.getValue() +
+                ",\"args\":{\"name\":" + jsonString(e.getKey()) + "}}");
+        }
+        for (TaskMetrics t : tasks) {
+            if ( ! first) out.write(",");
+            first = false;
+            out.write("\n{\"name\":" + jsonString(t.getName()) + ",\"cat\":\"" + (t.offPool ? "offPool" : "task") + "\"" +
+                ",\"ph\":\"X\",\"pid\":1,\"tid\":" + threadIds.get(t.threadName) +
+                ",\"ts\":" + micros(t.startNanos - startNanos) + ",\"dur\":" + micros(t.getRunningNanos()) +
+                ",\"args\":{\"blockedMicros\":" + micros(t.getBlockedNanos()) + ",\"queuedMicros\":" + micros(t.getQueuedNanos()) + "}}");
+        }
+        out.write("\n]}\n");
+    }
+
+    public void writeChromeTrace(@Nonnull File file) {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writeChromeTrace(out);
+        }
+        catch (IOException e) { throw new RuntimeException("Cannot write '" + file + "'", e); }
+    }
+
+    @Override public String toString() {
+        long blocked = 0, queued = 0, running = 0;
+        for (TaskMetrics t : tasks) { blocked += t.getBlockedNanos(); queued += t.getQueuedNanos(); running += t.getRunningNanos(); }
+        long criticalPathRunning = 0;
+        for (TaskMetrics t : getCriticalPath()) criticalPathRunning += t.getRunningNanos();
+        return tasks.size() + " tasks in " + Timer.formatDurationNanos(getWallNanos()) +
+            ", utilization " + Math.round(100 * getUtilization()) + "% of " + threadCount + " threads" +
+            ", total blocked " + Timer.formatDurationNanos(blocked) +
+            ", queued " + Timer.formatDurationNanos(queued) +
+            ", running " + Timer.formatDurationNanos(running) +
+            ", critical path " + getCriticalPath().size() + " tasks running " + Timer.formatDurationNanos(criticalPathRunning);
+    }
+}
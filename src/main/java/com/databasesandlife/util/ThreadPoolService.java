@@ -0,0 +1,117 @@
+package com.databasesandlife.util;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Long-lived threads, which execute the tasks of many {@link ThreadPool} objects ("jobs"),
+ * so that each job does not create and destroy its own threads.
+ *    <p>
+ * Each job has its own tasks, dependencies, and exception, and its {@link ThreadPool#execute()} blocks until
+ * its own tasks are complete, exactly as a job with its own threads would. Any number of jobs can execute at the same time,
+ * their tasks share the threads of the service. The threads take ready tasks from each job in turn.
+ *    <p>
+ * The threads are started when the service is created, and stopped by {@link #close()},
+ * so the service should be used in a try-with-resources block or closed when the application shuts down.
+ * Jobs still executing when the service is closed fail with an exception.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   try (ThreadPoolService service = new ThreadPoolService("worker", 10)) {
+ *       ...
+ *       ThreadPool job = new ThreadPool(service);
+ *       job.addTask(...);
+ *       job.execute();
+ *   }
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ThreadPoolService implements AutoCloseable {
+
+    protected final @Nonnull String threadNamePrefix;
+    protected final List<Thread> threads = new ArrayList<>();
+    protected final List<ThreadPool> jobs = new CopyOnWriteArrayList<>();
+    /** Incremented whenever a task might have become ready, so that a thread doesn't wait having missed it */
+    protected volatile long signalCount = 0;
+    protected volatile boolean closed = false;
+
+    public ThreadPoolService(@Nonnull String threadNamePrefix, int threadCount) {
+        this.threadNamePrefix = threadNamePrefix;
+        for (int i = 0; i < threadCount; i++) {
+            int offset = i;
+            Thread t = new Thread(() -> runWorker(offset), threadNamePrefix + "-thread" + i);
+            threads.add(t);
+            t.start();
+        }
+    }
+
+    public ThreadPoolService(int threadCount) {
+        this(ThreadPoolService.class.getSimpleName(), threadCount);
+    }
+
+    protected synchronized void addJob(@Nonnull ThreadPool job) {
+        if (closed) throw new IllegalStateException(this + " has been closed");
+        jobs.add(job);
+        signalCount++;
+        notifyAll();
+    }
+
+    protected void removeJob(@Nonnull ThreadPool job) {
+        jobs.remove(job);
+    }
+
+    /** Called by jobs, possibly with the job's lock held, so this must not call any methods of jobs */
+    protected synchronized void onTasksReady(int count) {
+        signalCount++;
+        for (int i = 0; i < count; i++) notify();
+    }
+
+    /** @param offset the job which this thread checks first, so that not all threads favour the same job */
+    protected void runWorker(int offset) {
+        while ( ! closed) {
+            long signalCountBeforeCheck = signalCount;
+
+            boolean executed = false;
+            List<ThreadPool> jobsSnapshot = new ArrayList<>(jobs);
+            for (int i = 0; i < jobsSnapshot.size() && ! executed; i++) {
+                ThreadPool job = jobsSnapshot.get((offset + i) % jobsSnapshot.size());
+                job.drawFromTaskSources();
+                @CheckForNull Runnable task = job.takeReadyTask();
+                if (task != null) {
+                    job.runTask(task, false);
+                    executed = true;
+                }
+            }
+            if (executed) { offset++; continue; }
+
+            synchronized (this) {
+                if ( ! closed && signalCount == signalCountBeforeCheck)
+                    try { wait(); }
+                    catch (InterruptedException ignored) { }
+            }
+        }
+    }
+
+    /** Waits for the threads to complete the tasks they are executing, then stops them */
+    @Override public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        for (ThreadPool job : jobs) job.onServiceClosed();
+        for (Thread t : threads) {
+            try { t.join(); }
+            catch (InterruptedException e) { throw new RuntimeException(e); }
+        }
+    }
+
+    @Override public String toString() {
+        return getClass().getSimpleName() + "[" + threadNamePrefix + "]";
+    }
+}
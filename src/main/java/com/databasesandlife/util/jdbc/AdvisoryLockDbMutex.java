@@ -0,0 +1,188 @@
+package com.databasesandlife.util.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.MD5Hex;
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRowIterator;
+
+/**
+ * A mutex which is held until the transaction commits or rolls back, using the database's "advisory locks"
+ * rather than rows in a table, so no <code>mutex</code> table is necessary.
+ *    <p>
+ * Acquiring the mutex is one statement:
+ * <ul>
+ *   <li>PostgreSQL: <code>pg_advisory_xact_lock(key)</code> where the key is a 64-bit hash of the name.
+ *   <li>MySQL: <code>GET_LOCK(name, timeout)</code>. The lock is held by the session, not the transaction,
+ *       so it is released with <code>RELEASE_LOCK(name)</code> after the transaction commits or rolls back,
+ *       before the connection is closed, as closing a pooled connection would not end the session.
+ *   <li>Other databases: the table-based implementation of {@link DbMutex} is used.
+ * </ul>
+ *    <p>
+ * Transactions in the same JVM which want the same mutex wait for each other in memory before the database is involved,
+ * so only one thread of this process waits for any one lock in the database.
+ * The mutex is reentrant: acquiring it again in a transaction which already holds it returns immediately.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   try (DbTransaction tx = new DbTransaction(jdbc)) {
+ *      new AdvisoryLockDbMutex("checkout-" + customerId).acquire(tx);
+ *      ...
+ *      tx.commit();  // releases the mutex
+ *   }
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class AdvisoryLockDbMutex extends DbMutex {
+
+    /** Lock within this JVM, which exists as long as any transaction holds or is waiting for the mutex */
+    protected static class LocalLock {
+        final Semaphore semaphore = new Semaphore(1, true);
+        int users = 0;
+        volatile @CheckForNull DbTransaction holder = null;
+    }
+
+    protected static final Map<String, LocalLock> localLocks = new HashMap<>();
+
+    public AdvisoryLockDbMutex(@Nonnull String name) { super(name); }
+
+    protected static @Nonnull LocalLock useLocalLock(@Nonnull String name) {
+        synchronized (localLocks) {
+            LocalLock lock = localLocks.computeIfAbsent(name, n -> new LocalLock());
+            lock.users++;
+            return lock;
+        }
+    }
+
+    protected static void unuseLocalLock(@Nonnull String name, @Nonnull LocalLock lock) {
+        synchronized (localLocks) {
+            lock.users--;
+            if (lock.users == 0) localLocks.remove(name);
+        }
+    }
+
+    /** @return 64-bit key for PostgreSQL advisory lock functions */
+    protected long getPostgresKey() {
+        return Long.parseUnsignedLong(MD5Hex.md5(name).substring(0, 16), 16);
+    }
+
+    /** @return name for MySQL GET_LOCK, which may be at most 64 characters */
+    protected @Nonnull String getMysqlLockName() {
+        return name.length() <= 64 ? name : MD5Hex.md5(name);
+    }
+
+    /** 
+     * Reads the single row of the query, bypassing query memoization, as each execution must really acquire the lock,
+     * and closes the ResultSet 
+     */
+    protected static <T> T queryLockFunction(
+        @Nonnull DbTransaction tx, @Nonnull Function<DbQueryResultRow, T> column, @Nonnull String sql, Object... args
+    ) {
+        Iterator<DbQueryResultRow> rows = tx.queryWithoutMemoization(sql, args).iterator();
+        try { return column.apply(rows.next()); }
+        finally { if (rows instanceof DbQueryResultRowIterator) ((DbQueryResultRowIterator) rows).close(); }
+    }
+
+    protected void releaseMysqlLock(@Nonnull Connection connection) throws SQLException {
+        try (PreparedStatement s = connection.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            s.setString(1, getMysqlLockName());
+            s.executeQuery().close();
+        }
+    }
+
+    /** @param timeoutMillis null means wait forever */
+    protected boolean acquireInDatabase(@Nonnull DbTransaction tx, @CheckForNull Long timeoutMillis) {
+        switch (tx.product) {
+            case postgres:
+                if (timeoutMillis == null) {
+                    queryLockFunction(tx, r -> null, "SELECT pg_advisory_xact_lock(?)", getPostgresKey());
+                    return true;
+                }
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                while (true) {
+                    Boolean acquired = queryLockFunction(tx, r -> r.getBoolean("acquired"),
+                        "SELECT pg_try_advisory_xact_lock(?) AS acquired", getPostgresKey());
+                    if (Boolean.TRUE.equals(acquired)) return true;
+                    if (System.currentTimeMillis() >= deadline) return false;
+                    try { Thread.sleep(10); }
+                    catch (InterruptedException e) { throw new RuntimeException(e); }
+                }
+
+            case mysql:
+                int timeoutSeconds = timeoutMillis == null ? -1 : (int) ((timeoutMillis + 999) / 1000);
+                Integer acquired = queryLockFunction(tx, r -> r.getInt("acquired"),
+                    "SELECT GET_LOCK(?, ?) AS acquired", getMysqlLockName(), timeoutSeconds);
+                if (acquired == null) throw new RuntimeException("GET_LOCK failed for mutex '" + name + "'");
+                if (acquired == 1) tx.addConnectionClosingListener(this::releaseMysqlLock);
+                return acquired == 1;
+
+            default:
+                if (timeoutMillis != null) throw new RuntimeException("tryAcquire is not supported on " + tx.product);
+                super.acquire(tx);
+                return true;
+        }
+    }
+
+    /** @param timeoutMillis null means wait forever */
+    protected boolean acquire(@Nonnull DbTransaction tx, @CheckForNull Long timeoutMillis) {
+        LocalLock lock = useLocalLock(name);
+        boolean success = false;
+        try {
+            if (lock.holder == tx) return true;
+
+            long start = System.currentTimeMillis();
+            if (timeoutMillis == null) lock.semaphore.acquire();
+            else if ( ! lock.semaphore.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) return false;
+
+            try {
+                Long remainingMillis = timeoutMillis == null ? null :
+                    Math.max(0, timeoutMillis - (System.currentTimeMillis() - start));
+                if ( ! acquireInDatabase(tx, remainingMillis)) { lock.semaphore.release(); return false; }
+            }
+            catch (RuntimeException e) { lock.semaphore.release(); throw e; }
+
+            lock.holder = tx;
+            tx.addTransactionEndedListener(() -> {  // called when the connection is closed, even if the rollback fails
+                lock.holder = null;
+                try { lock.semaphore.release(); }
+                finally { unuseLocalLock(name, lock); }
+            });
+            success = true;
+            return true;
+        }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+        finally { if ( ! success) unuseLocalLock(name, lock); }
+    }
+
+    /** Waits until the mutex is available, and holds it until the transaction ends */
+    @Override public void acquire(@Nonnull DbTransaction tx) {
+        acquire(tx, null);
+    }
+
+    /**
+     * Waits at most "timeoutMillis" for the mutex, and if acquired, holds it until the transaction ends.
+     * On MySQL the timeout is rounded up to whole seconds.
+     *
+     * @return false if the mutex could not be acquired within the timeout
+     */
+    public boolean tryAcquire(@Nonnull DbTransaction tx, long timeoutMillis) {
+        return acquire(tx, timeoutMillis);
+    }
+
+    @Override public String toString() {
+        return getClass().getSimpleName() + "[" + name + "]";
+    }
+}
@@ -0,0 +1,140 @@
+package com.databasesandlife.util.jdbc;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import com.databasesandlife.util.jdbc.DbTransaction.DbServerProduct;
+import com.databasesandlife.util.jdbc.DbTransaction.RowMapper;
+
+/**
+ * Collects requests to load objects by key, from many places in the code, and loads them all with one query.
+ *    <p>
+ * {@link #load(Object)} does not query the database, it only remembers the key, and returns a {@link Supplier}.
+ * The first time any such supplier is read, all keys remembered so far are loaded with one query
+ * (e.g. <code>WHERE id IN (?, ?, ..)</code>). Loaded values are remembered for the lifetime of this object,
+ * so requesting the same key again does not query the database again.
+ *    <p>
+ * For example, rendering code can call {@link #load(Object)} for each row it will render, and only afterwards read the values.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   BatchLoader&lt;Integer, Person&gt; people = tx.getBatchLoader("person", t -&gt; BatchLoader.forColumn(t,
+ *       "SELECT * FROM person WHERE", "id", row -&gt; row.getInt("id"), row -&gt; new Person(row)));
+ *   Supplier&lt;Person&gt; a = people.load(1), b = people.load(2);
+ *   a.get(); // loads both 1 and 2
+ * </pre>
+ *    <p>
+ * Objects of this class are not thread-safe, just as {@link DbTransaction} objects are not.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class BatchLoader<K, V> {
+
+    @FunctionalInterface
+    public interface BatchFunction<K, V> {
+        /** @return values for those keys which exist; keys missing from the result are loaded as null */
+        @Nonnull Map<K, V> loadAll(@Nonnull List<K> keys);
+    }
+
+    protected final @Nonnull BatchFunction<K, V> function;
+    protected int maxBatchSize = 1000;
+    protected final Map<K, V> loaded = new HashMap<>();
+    protected final Set<K> pending = new LinkedHashSet<>();
+
+    public BatchLoader(@Nonnull BatchFunction<K, V> function) {
+        this.function = function;
+    }
+
+    /**
+     * Loads rows whose "keyColumn" is one of the requested keys.
+     * On PostgreSQL, String and Integer keys are passed as one array parameter (<code>= ANY(?)</code>) so that
+     * all batches use the same prepared statement, otherwise <code>IN (?, ?, ..)</code> is used.
+     *
+     * @param sql the query without the condition on the key, which is appended, for example "SELECT * FROM person WHERE"
+     * @param keyColumn column which is compared to the keys, for example "id"
+     * @param keyForRow reads the key from a row, for example <code>row -&gt; row.getInt("id")</code>
+     */
+    public static @Nonnull <K, V> BatchLoader<K, V> forColumn(
+        @Nonnull DbTransaction tx, @Nonnull String sql, @Nonnull String keyColumn,
+        @Nonnull Function<DbQueryResultRow, K> keyForRow, @Nonnull RowMapper<V> valueForRow
+    ) {
+        return new BatchLoader<>(keys -> {
+            StringBuilder query = new StringBuilder(sql).append(" ");
+            List<Object> params = new ArrayList<>();
+            if (tx.product == DbServerProduct.postgres && keys.stream().allMatch(k -> k instanceof String)) {
+                query.append(keyColumn).append(" = ANY(?)");
+                params.add(keys.toArray(new String[0]));
+            } else if (tx.product == DbServerProduct.postgres && keys.stream().allMatch(k -> k instanceof Integer)) {
+                query.append(keyColumn).append(" = ANY(?)");
+                params.add(keys.toArray(new Integer[0]));
+            } else {
+                tx.appendIn(query, params, keyColumn, keys);
+            }
+
+            Map<K, V> result = new HashMap<>();
+            for (DbQueryResultRow row : tx.query(query, params)) result.put(keyForRow.apply(row), valueForRow.map(row));
+            return result;
+        });
+    }
+
+    /** How many keys are loaded by one query at most, default 1000 */
+    public void setMaxBatchSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+        maxBatchSize = size;
+    }
+
+    /** Remembers that the key should be loaded; the database is queried when any returned supplier is first read */
+    public @Nonnull Supplier<V> load(@Nonnull K key) {
+        if ( ! loaded.containsKey(key)) pending.add(key);
+        return () -> {
+            if ( ! loaded.containsKey(key)) dispatch();
+            return loaded.get(key);
+        };
+    }
+
+    /** Loads the key, and all other keys requested so far, immediately. @return null if the key does not exist */
+    public @CheckForNull V get(@Nonnull K key) {
+        return load(key).get();
+    }
+
+    /** @return only contains those keys which exist, in the order requested */
+    public @Nonnull Map<K, V> getAll(@Nonnull Collection<? extends K> keys) {
+        for (K k : keys) load(k);
+        dispatch();
+        Map<K, V> result = new LinkedHashMap<>();
+        for (K k : keys) if (loaded.get(k) != null) result.put(k, loaded.get(k));
+        return result;
+    }
+
+    /** Loads all keys requested so far but not yet loaded */
+    public void dispatch() {
+        while ( ! pending.isEmpty()) {
+            List<K> batch = new ArrayList<>(Math.min(maxBatchSize, pending.size()));
+            for (K k : pending) { if (batch.size() >= maxBatchSize) break; batch.add(k); }
+
+            Map<K, V> values = function.loadAll(batch);
+            for (K k : batch) {
+                loaded.put(k, values.get(k));
+                pending.remove(k);
+            }
+        }
+    }
+
+    /** Forgets all loaded values, for example after they have been modified */
+    public void clear() {
+        loaded.clear();
+    }
+}
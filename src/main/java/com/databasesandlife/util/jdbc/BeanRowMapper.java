@@ -0,0 +1,212 @@
+package com.databasesandlife.util.jdbc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.YearMonthDay;
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import com.databasesandlife.util.jdbc.DbTransaction.RowMapper;
+
+/**
+ * Creates objects from rows, by calling the public no-arg constructor and then, for each column, the public setter
+ * or public field of the same name.
+ *    <p>
+ * Column names are matched ignoring case and underscores, so the column "first_name" is written with
+ * <code>setFirstName</code> or to the field <code>firstName</code>. Columns without a matching setter or field are ignored.
+ * Setters and fields of types which cannot be read from a column are ignored, but if a column has the name of such
+ * a setter or field, and no other setter or field of that name, an exception is thrown.
+ *    <p>
+ * The constructor, setters and column types are resolved to {@link MethodHandle}s once per class and list of columns,
+ * and cached, so that converting each row does not involve any reflection. Values are read by column index.
+ * The cache is stored per class with {@link ClassValue}, so it does not prevent classes from being unloaded.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   List&lt;Person&gt; people = tx.query("SELECT * FROM person").toList(Person.class);
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class BeanRowMapper<T> implements RowMapper<T> {
+
+    @FunctionalInterface
+    protected interface ColumnReader {
+        @CheckForNull Object read(@Nonnull ResultSet rs, int idx) throws SQLException;
+    }
+
+    protected static class ColumnSetter {
+        String column;
+        int columnIndex;           // 1-based, as in ResultSet
+        ColumnReader reader;
+        MethodHandle setter;       // (Object, Object) -> void
+        boolean primitive;
+    }
+
+    /** Key is the list of columns */
+    protected static final ClassValue<Map<List<String>, BeanRowMapper<?>>> cache = new ClassValue<Map<List<String>, BeanRowMapper<?>>>() {
+        @Override protected Map<List<String>, BeanRowMapper<?>> computeValue(Class<?> cl) { return new ConcurrentHashMap<>(); }
+    };
+
+    protected final @Nonnull Class<T> cl;
+    protected final @Nonnull MethodHandle constructor;   // () -> Object
+    protected final @Nonnull ColumnSetter[] setters;
+
+    protected static @Nonnull String normalize(@Nonnull String name) {
+        return name.replace("_", "").toLowerCase();
+    }
+
+    /** Same conversions as the getters of {@link DbQueryResultRow}, but by column index */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    protected static @CheckForNull ColumnReader newColumnReader(@Nonnull Class<?> type) {
+        if (type == String.class) return ResultSet::getString;
+        if (type == Integer.class || type == int.class) return (rs, idx) -> { int x = rs.getInt(idx); return rs.wasNull() ? null : x; };
+        if (type == Long.class || type == long.class) return (rs, idx) -> { long x = rs.getLong(idx); return rs.wasNull() ? null : x; };
+        if (type == Double.class || type == double.class) return (rs, idx) -> { double x = rs.getDouble(idx); return rs.wasNull() ? null : x; };
+        if (type == Boolean.class || type == boolean.class) return (rs, idx) -> { boolean x = rs.getBoolean(idx); return rs.wasNull() ? null : x; };
+        if (type == BigDecimal.class) return ResultSet::getBigDecimal;
+        if (type == byte[].class) return ResultSet::getBytes;
+        if (type == Date.class) return (rs, idx) -> {
+            String str = rs.getString(idx);
+            if (str == null) return null;
+            SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            f.setTimeZone(TimeZone.getTimeZone("UTC"));
+            try { return f.parse(str); }
+            catch (ParseException e) { throw new RuntimeException(e); }
+        };
+        if (type == LocalDate.class) return (rs, idx) -> { String str = rs.getString(idx); return str == null ? null : LocalDate.parse(str); };
+        if (type == LocalTime.class) return (rs, idx) -> { String str = rs.getString(idx); return str == null ? null : LocalTime.parse(str); };
+        if (type == LocalDateTime.class) return (rs, idx) -> { Timestamp t = rs.getTimestamp(idx); return t == null ? null : t.toLocalDateTime(); };
+        if (type == YearMonthDay.class) return (rs, idx) -> {
+            String str = rs.getString(idx);
+            if (str == null) return null;
+            if (str.length() > "YYYY-MM-DD".length()) str = str.substring(0, "YYYY-MM-DD".length()); // e.g. if col is datetime
+            return YearMonthDay.newForYYYYMMDD(str);
+        };
+        if (type == String[].class || type == Integer[].class) return (rs, idx) -> {
+            java.sql.Array x = rs.getArray(idx);
+            if (x == null) return null;
+            try {
+                Object[] a = (Object[]) x.getArray();
+                return Arrays.copyOf(a, a.length, (Class) type);
+            }
+            finally { x.free(); }
+        };
+        if (type.isEnum()) return (rs, idx) -> {
+            String str = rs.getString(idx);
+            if (str == null) return null;
+            return Enum.valueOf((Class) type, str);
+        };
+        return null;
+    }
+
+    protected BeanRowMapper(@Nonnull Class<T> cl, @Nonnull List<String> columns) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            MethodType setterType = MethodType.methodType(void.class, Object.class, Object.class);
+
+            this.cl = cl;
+            this.constructor = lookup.unreflectConstructor(cl.getConstructor()).asType(MethodType.methodType(Object.class));
+
+            // Setters take precedence over fields of the same name
+            Map<String, Class<?>> propertyType = new HashMap<>(), unsupportedPropertyType = new HashMap<>();
+            Map<String, MethodHandle> propertySetter = new HashMap<>();
+            for (Field f : cl.getFields()) {
+                if (Modifier.isStatic(f.getModifiers()) || Modifier.isFinal(f.getModifiers())) continue;
+                if (newColumnReader(f.getType()) == null) { unsupportedPropertyType.put(normalize(f.getName()), f.getType()); continue; }
+                propertyType.put(normalize(f.getName()), f.getType());
+                propertySetter.put(normalize(f.getName()), lookup.unreflectSetter(f).asType(setterType));
+            }
+            for (Method m : cl.getMethods()) {
+                if (Modifier.isStatic(m.getModifiers())) continue;
+                if ( ! m.getName().startsWith("set") || m.getName().length() == 3) continue;
+                if (m.getParameterCount() != 1) continue;
+                String property = normalize(m.getName().substring(3));
+                Class<?> type = m.getParameterTypes()[0];
+                if (newColumnReader(type) == null) { unsupportedPropertyType.put(property, type); continue; }
+                propertyType.put(property, type);
+                propertySetter.put(property, lookup.unreflect(m).asType(setterType));
+            }
+
+            List<ColumnSetter> result = new ArrayList<>(columns.size());
+            for (int c = 0; c < columns.size(); c++) {
+                String col = columns.get(c);
+                Class<?> type = propertyType.get(normalize(col));
+                if (type == null && unsupportedPropertyType.containsKey(normalize(col)))
+                    throw new RuntimeException("Class '" + cl.getName() + "': cannot map column '" + col + "' " +
+                        "to property of type '" + unsupportedPropertyType.get(normalize(col)).getName() + "'");
+                if (type == null) continue;
+                ColumnSetter s = new ColumnSetter();
+                s.column = col;
+                s.columnIndex = c + 1;
+                s.reader = newColumnReader(type);
+                s.setter = propertySetter.get(normalize(col));
+                s.primitive = type.isPrimitive();
+                result.add(s);
+            }
+            this.setters = result.toArray(new ColumnSetter[0]);
+        }
+        catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new RuntimeException("Class '" + cl.getName() + "' must have a public no-arg constructor " +
+                "and public setters or fields", e);
+        }
+    }
+
+    /**
+     * @param columns the labels of all columns of the rows which will be mapped, in order
+     * @return a mapper for the class and columns, which is created the first time and then cached
+     */
+    @SuppressWarnings("unchecked")
+    public static @Nonnull <T> BeanRowMapper<T> forColumns(@Nonnull Class<T> cl, @Nonnull List<String> columns) {
+        return (BeanRowMapper<T>) cache.get(cl).computeIfAbsent(new ArrayList<>(columns), k -> new BeanRowMapper<>(cl, columns));
+    }
+
+    /** @return a mapper for the class and the columns of the row, which is created the first time and then cached */
+    public static @Nonnull <T> BeanRowMapper<T> forRow(@Nonnull Class<T> cl, @Nonnull DbQueryResultRow row) {
+        return forColumns(cl, row.getColumnLabels());
+    }
+
+    @Override public @Nonnull T map(@Nonnull DbQueryResultRow row) {
+        try {
+            Object result = (Object) constructor.invokeExact();
+            for (ColumnSetter s : setters) {
+                Object value = s.reader.read(row.rs, s.columnIndex);
+                if (value == null && s.primitive) continue;
+                s.setter.invokeExact(result, value);
+            }
+            return cl.cast(result);
+        }
+        catch (RuntimeException | Error e) { throw e; }
+        catch (Throwable e) { throw new RuntimeException("Class '" + cl.getName() + "': " + e.getMessage(), e); }
+    }
+
+    @Override public String toString() {
+        List<String> columns = new ArrayList<>(setters.length);
+        for (ColumnSetter s : setters) columns.add(s.column);
+        return getClass().getSimpleName() + "[" + cl.getName() + ", " + columns + "]";
+    }
+}
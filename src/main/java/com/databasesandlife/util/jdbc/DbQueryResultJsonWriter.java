@@ -0,0 +1,134 @@
+package com.databasesandlife.util.jdbc;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes rows as JSON objects directly from the ResultSet, see {@link DbTransaction.DbQueryResultSet#writeJson(JsonGenerator)}.
+ *    <p>
+ * The column labels and types are read from the first row's metadata, and each column is then written with the
+ * JSON type corresponding to its SQL type (number, boolean, string, base64 string for binary data, or array), without
+ * creating intermediate objects such as Maps or JsonNodes.
+ * Floating-point values which JSON numbers cannot represent (NaN and infinity) are written as strings, e.g. "NaN".
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class DbQueryResultJsonWriter {
+
+    /** Thread-safe, and expensive to create */
+    protected static final JsonFactory jsonFactory = new JsonFactory();
+
+    protected final @Nonnull SerializableString[] names;
+    protected final @Nonnull int[] types;
+
+    public DbQueryResultJsonWriter(@Nonnull DbQueryResultRow firstRow) {
+        try {
+            ResultSetMetaData md = firstRow.rs.getMetaData();
+            names = new SerializableString[md.getColumnCount()];
+            types = new int[md.getColumnCount()];
+            for (int c = 0; c < names.length; c++) {
+                names[c] = new SerializedString(md.getColumnLabel(c + 1));
+                types[c] = md.getColumnType(c + 1);
+            }
+        }
+        catch (SQLException e) { throw new RuntimeException(e); }
+    }
+
+    protected void writeDouble(@Nonnull JsonGenerator gen, double v) throws IOException {
+        if (Double.isNaN(v) || Double.isInfinite(v)) gen.writeString(Double.toString(v));
+        else gen.writeNumber(v);
+    }
+
+    /** @param array an Object[], or an array of primitives such as int[], as drivers may return either */
+    protected void writeArray(@Nonnull JsonGenerator gen, @Nonnull Object array) throws IOException {
+        gen.writeStartArray();
+        for (int i = 0; i < Array.getLength(array); i++) writeArrayElement(gen, Array.get(array, i));
+        gen.writeEndArray();
+    }
+
+    protected void writeArrayElement(@Nonnull JsonGenerator gen, Object element) throws IOException {
+        if (element == null) gen.writeNull();
+        else if (element instanceof Boolean) gen.writeBoolean((Boolean) element);
+        else if (element instanceof Integer || element instanceof Short) gen.writeNumber(((Number) element).intValue());
+        else if (element instanceof Long) gen.writeNumber((Long) element);
+        else if (element instanceof Double || element instanceof Float) writeDouble(gen, ((Number) element).doubleValue());
+        else if (element instanceof BigDecimal) gen.writeNumber((BigDecimal) element);
+        else if (element instanceof byte[]) gen.writeBinary((byte[]) element);
+        else if (element.getClass().isArray()) writeArray(gen, element);  // multi-dimensional
+        else gen.writeString(element.toString());
+    }
+
+    protected void writeColumn(@Nonnull JsonGenerator gen, @Nonnull ResultSet rs, int c) throws IOException, SQLException {
+        int col = c + 1;
+        switch (types[c]) {
+            case Types.BIT: case Types.BOOLEAN: {
+                boolean v = rs.getBoolean(col);
+                if (rs.wasNull()) gen.writeNull(); else gen.writeBoolean(v);
+                break;
+            }
+            case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: {
+                int v = rs.getInt(col);
+                if (rs.wasNull()) gen.writeNull(); else gen.writeNumber(v);
+                break;
+            }
+            case Types.BIGINT: {
+                long v = rs.getLong(col);
+                if (rs.wasNull()) gen.writeNull(); else gen.writeNumber(v);
+                break;
+            }
+            case Types.REAL: case Types.FLOAT: case Types.DOUBLE: {
+                double v = rs.getDouble(col);
+                if (rs.wasNull()) gen.writeNull(); else writeDouble(gen, v);
+                break;
+            }
+            case Types.NUMERIC: case Types.DECIMAL: {
+                BigDecimal v = rs.getBigDecimal(col);
+                if (v == null) gen.writeNull(); else gen.writeNumber(v);
+                break;
+            }
+            case Types.BINARY: case Types.VARBINARY: case Types.LONGVARBINARY: case Types.BLOB: {
+                byte[] v = rs.getBytes(col);
+                if (v == null) gen.writeNull(); else gen.writeBinary(v);
+                break;
+            }
+            case Types.ARRAY: {
+                java.sql.Array v = rs.getArray(col);
+                if (v == null) { gen.writeNull(); break; }
+                try { writeArray(gen, v.getArray()); }
+                finally { v.free(); }
+                break;
+            }
+            default: {
+                String v = rs.getString(col);
+                if (v == null) gen.writeNull(); else gen.writeString(v);
+            }
+        }
+    }
+
+    /** Writes the current row as a JSON object */
+    public void writeRow(@Nonnull JsonGenerator gen, @Nonnull DbQueryResultRow row) throws IOException {
+        try {
+            gen.writeStartObject();
+            for (int c = 0; c < names.length; c++) {
+                gen.writeFieldName(names[c]);
+                writeColumn(gen, row.rs, c);
+            }
+            gen.writeEndObject();
+        }
+        catch (SQLException e) { throw new RuntimeException(e); }
+    }
+}
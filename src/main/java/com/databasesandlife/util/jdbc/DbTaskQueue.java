@@ -0,0 +1,277 @@
+package com.databasesandlife.util.jdbc;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+import com.databasesandlife.util.ThreadPool;
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import com.databasesandlife.util.jdbc.DbTransaction.DbServerProduct;
+import com.databasesandlife.util.jdbc.DbTransaction.DbTransactionFactory;
+
+/**
+ * A queue of tasks stored in the database, which are executed by any number of JVMs ("nodes").
+ *    <p>
+ * Each node claims ready tasks with <code>SELECT .. FOR UPDATE SKIP LOCKED</code>, so nodes never wait
+ * for each other and never claim the same task, and executes them on a local {@link ThreadPool}.
+ * A node claims as many tasks as it has free threads, and claims again each time a task completes,
+ * so a slow task does not stop the other threads from working on new tasks.
+ * Completion or failure of each task is recorded in the database.
+ *    <p>
+ * A task has a type, which determines the {@link TaskHandler} which executes it, and a payload, for example a URL or JSON.
+ * As with {@link ThreadPool#addTaskWithDependencies(List, Runnable...)}, a task can depend on other tasks,
+ * in which case it is only claimed once all those tasks are done. If a task fails, tasks depending on it are never executed.
+ *    <p>
+ * A task handler is passed a transaction, which is committed together with the record that the task is done.
+ * Handlers can add further tasks in this transaction, for example a crawler adding the links it has found.
+ * If the handler throws an exception, the transaction is rolled back, and the failure is recorded in a new transaction.
+ *    <p>
+ * To use this, create these tables (PostgreSQL, or MySQL 8 with BIGINT AUTO_INCREMENT):
+ * <pre>
+ *   CREATE TABLE task_queue (
+ *     id BIGSERIAL PRIMARY KEY,
+ *     queue VARCHAR(100) NOT NULL,
+ *     task_type VARCHAR(100) NOT NULL,
+ *     payload TEXT NOT NULL,
+ *     state VARCHAR(10) NOT NULL,      -- ready, running, done, failed
+ *     claimed_by VARCHAR(100),
+ *     claimed_at TIMESTAMP,
+ *     error TEXT
+ *   );
+ *   CREATE INDEX task_queue_ready ON task_queue(queue, state, id);
+ *   CREATE TABLE task_queue_dependency (
+ *     task_id BIGINT NOT NULL,
+ *     depends_on_id BIGINT NOT NULL,
+ *     PRIMARY KEY (task_id, depends_on_id)
+ *   );
+ * </pre>
+ *    <p>
+ * Usage:
+ * <pre>
+ *   DbTaskQueue queue = new DbTaskQueue(() -&gt; new DbTransaction(jdbc), "crawler", hostname);
+ *   queue.registerHandler("fetch", (tx, url) -&gt; { .. queue.addTask(tx, "fetch", link); .. });
+ *
+ *   try (DbTransaction tx = new DbTransaction(jdbc)) { queue.addTask(tx, "fetch", "http://www.example.com/"); tx.commit(); }
+ *
+ *   while (true) {
+ *       if (queue.processAvailableTasks() == 0) Thread.sleep(1000);
+ *   }
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class DbTaskQueue {
+
+    @FunctionalInterface
+    public interface TaskHandler {
+        /** @param tx committed after this method returns successfully, rolled back if it throws */
+        void run(@Nonnull DbTransaction tx, @Nonnull String payload) throws Exception;
+    }
+
+    protected static class ClaimedTask {
+        long id;
+        String type;
+        String payload;
+    }
+
+    protected final @Nonnull DbTransactionFactory db;
+    protected final @Nonnull String queue;
+    protected final @Nonnull String nodeName;
+    protected final Map<String, TaskHandler> handlers = new ConcurrentHashMap<>();
+    protected int threadCount = Runtime.getRuntime().availableProcessors();
+    protected int batchSize = 100;
+
+    /**
+     * @param queue many queues can be stored in the same table, each is processed independently
+     * @param nodeName stored with each task this node claims, for diagnostics, for example the hostname
+     */
+    public DbTaskQueue(@Nonnull DbTransactionFactory db, @Nonnull String queue, @Nonnull String nodeName) {
+        this.db = db;
+        this.queue = queue;
+        this.nodeName = nodeName;
+    }
+
+    public void setThreadCount(int count) { threadCount = count; }
+
+    /** At most how many tasks are claimed at once, default 100; no more tasks are claimed than there are free threads */
+    public void setBatchSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+        batchSize = size;
+    }
+
+    public void registerHandler(@Nonnull String taskType, @Nonnull TaskHandler handler) {
+        handlers.put(taskType, handler);
+    }
+
+    /** Adds a task, which can be claimed as soon as "tx" commits. @return the ID of the new task */
+    public long addTask(@Nonnull DbTransaction tx, @Nonnull String taskType, @Nonnull String payload) {
+        return addTaskWithDependencies(tx, new ArrayList<>(), taskType, payload);
+    }
+
+    /**
+     * Adds a task which is only claimed after all tasks in "dependencies" are done.
+     * @param dependencies IDs of tasks previously added to this queue
+     * @return the ID of the new task
+     */
+    public long addTaskWithDependencies(
+        @Nonnull DbTransaction tx, @Nonnull List<Long> dependencies, @Nonnull String taskType, @Nonnull String payload
+    ) {
+        Map<String, Object> task = new HashMap<>();
+        task.put("queue", queue);
+        task.put("task_type", taskType);
+        task.put("payload", payload);
+        task.put("state", "ready");
+        long id = tx.insertAndFetchNewId("task_queue", task);
+
+        for (Long dependency : dependencies) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("task_id", id);
+            row.put("depends_on_id", dependency);
+            tx.insert("task_queue_dependency", row);
+        }
+
+        return id;
+    }
+
+    /**
+     * With REPEATABLE READ, rows changed by other nodes since the snapshot was taken would cause serialization errors,
+     * and dependencies completed since then would not be seen.
+     */
+    protected @Nonnull DbTransaction newReadCommittedTransaction() {
+        DbTransaction tx = db.newDbTransaction();
+        if (tx.product != DbServerProduct.postgres && tx.product != DbServerProduct.mysql) {
+            tx.rollback();
+            throw new RuntimeException(getClass().getSimpleName() + " is not supported on " + tx.product);
+        }
+        tx.execute("SET TRANSACTION ISOLATION LEVEL READ COMMITTED");
+        return tx;
+    }
+
+    /** @return at most "limit" tasks which are ready, and whose dependencies are all done, which this node now owns */
+    protected @Nonnull List<ClaimedTask> claimBatch(int limit) {
+        try (DbTransaction tx = newReadCommittedTransaction()) {
+            Map<Long, ClaimedTask> claimed = new LinkedHashMap<>();
+            for (DbQueryResultRow row : tx.query(
+                "SELECT id, task_type, payload FROM task_queue q " +
+                "WHERE queue = ? AND state = 'ready' " +
+                "AND NOT EXISTS (SELECT 1 FROM task_queue_dependency d JOIN task_queue dep ON dep.id = d.depends_on_id " +
+                "   WHERE d.task_id = q.id AND dep.state <> 'done') " +
+                "ORDER BY id LIMIT " + limit + " FOR UPDATE OF q SKIP LOCKED", queue)) {
+                ClaimedTask t = new ClaimedTask();
+                t.id = row.getLong("id");
+                t.type = row.getString("task_type");
+                t.payload = row.getString("payload");
+                claimed.put(t.id, t);
+            }
+
+            if ( ! claimed.isEmpty()) {
+                StringBuilder sql = new StringBuilder("UPDATE task_queue SET state = 'running', claimed_by = ?, claimed_at = ? WHERE ");
+                List<Object> params = new ArrayList<>();
+                params.add(nodeName);
+                params.add(new Date());
+                tx.appendIn(sql, params, "id", claimed.keySet());
+                tx.execute(sql.toString(), params.toArray());
+            }
+
+            tx.commit();
+            return new ArrayList<>(claimed.values());
+        }
+    }
+
+    protected void recordFailure(@Nonnull ClaimedTask task, @Nonnull Throwable e) {
+        Logger.getLogger(getClass()).error("Task " + task.id + " (" + task.type + ") failed", e);
+        StringWriter stackTrace = new StringWriter();
+        e.printStackTrace(new PrintWriter(stackTrace));
+        try (DbTransaction tx = db.newDbTransaction()) {
+            tx.execute("UPDATE task_queue SET state = 'failed', error = ? WHERE id = ?", stackTrace.toString(), task.id);
+            tx.commit();
+        }
+    }
+
+    protected void executeTask(@Nonnull ClaimedTask task) {
+        try {
+            TaskHandler handler = handlers.get(task.type);
+            if (handler == null) throw new RuntimeException("No handler registered for task type '" + task.type + "'");
+            try (DbTransaction tx = db.newDbTransaction()) {
+                handler.run(tx, task.payload);
+                tx.execute("UPDATE task_queue SET state = 'done', error = NULL WHERE id = ?", task.id);
+                tx.commit();
+            }
+        }
+        catch (Throwable e) { recordFailure(task, e); }
+    }
+
+    /**
+     * Claims as many tasks as there are free threads, and executes them on the pool; after each one, does the same again.
+     * Synchronized, so that a claim which starts after a task has completed sees the tasks which that task made ready.
+     */
+    protected synchronized void claimAndExecute(@Nonnull ThreadPool pool, @Nonnull AtomicInteger running, @Nonnull AtomicInteger count) {
+        int freeThreads = threadCount - running.get();
+        if (freeThreads <= 0) return;
+        for (ClaimedTask task : claimBatch(Math.min(batchSize, freeThreads))) {
+            running.incrementAndGet();
+            count.incrementAndGet();
+            pool.addTask(() -> {
+                try { executeTask(task); }
+                finally { running.decrementAndGet(); }
+                claimAndExecute(pool, running, count);
+            });
+        }
+    }
+
+    /**
+     * Claims and executes tasks until there are no more tasks which are ready.
+     * Tasks which become ready because tasks executed by this call are done, are also executed by this call.
+     * A task which fails is recorded as failed; this method does not throw an exception in that case.
+     *
+     * @return the number of tasks executed, successfully or not
+     */
+    public int processAvailableTasks() {
+        AtomicInteger running = new AtomicInteger(), count = new AtomicInteger();
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(threadCount);
+        pool.setThreadNamePrefix(getClass().getSimpleName() + "-" + queue);
+
+        pool.addTask(() -> claimAndExecute(pool, running, count));
+
+        pool.execute();
+        return count.get();
+    }
+
+    /**
+     * Makes tasks claimed longer ago than "olderThanSeconds", and still not done, available again.
+     * For example, if a node has crashed while executing tasks.
+     * @return the number of tasks made available again
+     */
+    public int releaseStaleClaims(int olderThanSeconds) {
+        try (DbTransaction tx = newReadCommittedTransaction()) {
+            Date cutoff = new Date(System.currentTimeMillis() - olderThanSeconds * 1000L);
+            List<Long> ids = new ArrayList<>();
+            for (DbQueryResultRow row : tx.query("SELECT id FROM task_queue WHERE queue = ? AND state = 'running' " +
+                    "AND claimed_at < ? FOR UPDATE SKIP LOCKED", queue, cutoff))
+                ids.add(row.getLong("id"));
+
+            if ( ! ids.isEmpty()) {
+                StringBuilder sql = new StringBuilder("UPDATE task_queue SET state = 'ready', claimed_by = NULL, claimed_at = NULL WHERE ");
+                List<Object> params = new ArrayList<>();
+                tx.appendIn(sql, params, "id", ids);
+                tx.execute(sql.toString(), params.toArray());
+            }
+
+            tx.commit();
+            return ids.size();
+        }
+    }
+}
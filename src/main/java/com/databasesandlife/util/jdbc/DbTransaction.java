@@ -2,7 +2,9 @@ package com.databasesandlife.util.jdbc;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.math.BigDecimal;
@@ -22,11 +24,18 @@ import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
+import javax.sql.RowSetMetaData;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetFactory;
+import javax.sql.rowset.RowSetProvider;
+
 import org.apache.log4j.Logger;
 import org.jooq.DSLContext;
 import org.jooq.SQLDialect;
@@ -35,6 +44,8 @@ import org.jooq.impl.DSL;
 
 import com.databasesandlife.util.*;
 import com.databasesandlife.util.Timer;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.microsoft.sqlserver.jdbc.SQLServerDriver;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -73,6 +84,13 @@ import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExc
  *       When the transaction rolls back, this listener will get called.
  *       This is so that any primary keys which have been assigned and stored in Java objects,
  *       which are now no longer valid due to the rollback, may be removed from the Java objects.
+ *   <li>You can register {@link TransactionEndedListener} objects with {@link #addTransactionEndedListener(TransactionEndedListener)},
+ *       which get called after the transaction has either committed or rolled back.
+ *       Resources held by the connection's session can be released with a {@link ConnectionClosingListener}.
+ *   <li>With {@link #setSlowQueryLog(SlowQueryLog)}, statements which take too long are explained, and their plans logged.
+ *   <li>With {@link #setQueryMemoization(boolean)}, repeated identical SELECTs are answered from memory.
+ *   <li>With {@link #setRepeatedStatementWarningThreshold(int)}, statements executed in a loop ("N+1 queries") are logged.
+ *   <li>Transactions can be created read-only, see {@link #DbTransaction(String, boolean)}.
  * </ul>
  *     <p>
  * Upon creating an object, a connection is made to the database, and a transaction is started.
@@ -101,10 +119,32 @@ import static com.databasesandlife.util.gwtsafe.ConfigurationException.prefixExc
 public class DbTransaction implements DbQueryable, AutoCloseable {
     
     public final DbServerProduct product;
+    public final boolean readOnly;
     protected Connection connection;    // null means already committed
     protected final List<RollbackListener> rollbackListeners = new ArrayList<>();
+    protected final List<TransactionEndedListener> transactionEndedListeners = new ArrayList<>();
+    protected final List<ConnectionClosingListener> connectionClosingListeners = new ArrayList<>();
     protected final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
     protected final Map<Class<? extends Enum<?>>, String> postgresTypeForEnum = new HashMap<>();
+    protected SlowQueryLog slowQueryLog = null;
+    protected int repeatedStatementWarningThreshold = 0;  // 0 means disabled
+    protected final Map<String, Integer> statementCountForShape = new HashMap<>();
+    protected final Map<Object, BatchLoader<?, ?>> batchLoaders = new HashMap<>();
+    protected boolean queryMemoization = false;
+    protected final Map<MemoizedQueryKey, CachedRowSet> memoizedQueries = new HashMap<>();
+    protected static RowSetFactory rowSetFactory = null;
+    
+    /** Generated INSERT and UPDATE SQL, shared between transactions, see {@link #newGeneratedSqlKey(String, String, Map)} */
+    protected static final int maxGeneratedSqlCount = 1000;
+    protected static final Map<List<Object>, String> generatedSql = Collections.synchronizedMap(
+        new LinkedHashMap<List<Object>, String>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<List<Object>, String> eldest) {
+                return size() > maxGeneratedSqlCount;
+            }
+        });
+    
+    /** PostgreSQL's JDBC driver allows at most this many "?" in a statement; MySQL allows more */
+    public static final int maxBindParametersPerStatement = 32767;
 
     @Override
     public void close() {
@@ -145,6 +185,24 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         public void transactionHasRolledback();
     }
     
+    @FunctionalInterface public interface TransactionEndedListener {
+        /** Called after the transaction has committed or rolled back, and the connection has been closed */
+        public void transactionHasEnded();
+    }
+    
+    @FunctionalInterface public interface ConnectionClosingListener {
+        /** 
+         * Called after the transaction has committed or rolled back, before the connection is closed,
+         * which may return it to a pool, so that resources held by the session can be released.
+         */
+        public void connectionClosing(Connection connection) throws SQLException;
+    }
+    
+    /** Converts the current row of a query result into an object, see {@link DbQueryResultSet#map(RowMapper)} */
+    @FunctionalInterface public interface RowMapper<T> {
+        public T map(DbQueryResultRow row);
+    }
+    
     public static class DbQueryResultRow {
         ResultSet rs;
         DbQueryResultRow(ResultSet rs) { this.rs = rs; }
@@ -170,6 +228,18 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             }
             catch (SQLException e) { throw new RuntimeException(e); }
         }
+        
+        /** Column names as specified with "AS" in the query, if present. */
+        public List<String> getColumnLabels() {
+            try {
+                ResultSetMetaData rsmd = rs.getMetaData();
+                int columnCount = rsmd.getColumnCount();
+                List<String> result = new ArrayList<>(columnCount);
+                for (int i = 1; i <= columnCount; i++) result.add(rsmd.getColumnLabel(i));
+                return result;
+            }
+            catch (SQLException e) { throw new RuntimeException(e); }
+        }
 
         @SuppressFBWarnings("NP_BOOLEAN_RETURN_NULL") // We want to return null here, this is by design 
         public Boolean getBoolean(String col){
@@ -323,20 +393,32 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         }
     }
     
-    public static class DbQueryResultRowIterator implements Iterator<DbQueryResultRow> {
+    /** 
+     * Closes the ResultSet as soon as all rows have been read, or when {@link #close()} is called,
+     * so that the database can release the cursor before the transaction ends.
+     */
+    public static class DbQueryResultRowIterator implements Iterator<DbQueryResultRow>, AutoCloseable {
         enum State { readingData, /** rs is actually one row forward of iterator */ peeked, finished };
         
         ResultSet rs;
+        boolean closeResultSet;
         State state = State.readingData;
+        Runnable afterClose = null;
         
         protected DbQueryResultRowIterator(ResultSet rs) { 
+            this(rs, true);
+        }
+        
+        /** @param closeResultSet false if the ResultSet is owned by someone else, e.g. memoized rows */
+        protected DbQueryResultRowIterator(ResultSet rs, boolean closeResultSet) { 
             this.rs = rs; 
+            this.closeResultSet = closeResultSet;
             hasNext(); // this forces the statement to really be executed; important for timing
         }
         
         @Override public boolean hasNext() {
             try {
-                if (state == State.readingData) { if (rs.next()) state = State.peeked; else state = State.finished; }
+                if (state == State.readingData) { if (rs.next()) state = State.peeked; else close(); }
                 if (state == State.peeked) return true;
                 if (state == State.finished) return false;
                 throw new RuntimeException();
@@ -354,12 +436,43 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         @Override public void remove() {
             throw new UnsupportedOperationException();
         }
+        
+        /** Rows which have been returned by {@link #next()} can no longer be read after this is called */
+        @Override public void close() {
+            if (state == State.finished) return;
+            state = State.finished;
+            if (closeResultSet) {
+                try { rs.close(); }
+                catch (SQLException ignored) { } // ignore errors on closing
+            }
+            if (afterClose != null) { Runnable r = afterClose; afterClose = null; r.run(); }
+        }
+        
+        /** Runs "r" once the ResultSet has been closed, or immediately if it already has been */
+        protected void runAfterClose(Runnable r) {
+            if (state == State.finished) r.run();
+            else afterClose = r;
+        }
     }
     
     public abstract static class DbQueryResultSet implements Iterable<DbQueryResultRow> {
 
+        /** 
+         * The query is executed when the stream's terminal operation starts, and its ResultSet is closed when all rows
+         * have been read or the stream is closed. For operations which do not read all rows, such as 
+         * <code>findFirst</code> or <code>limit</code>, use <code>try (Stream&lt;..&gt; s = ...stream()) { .. }</code>
+         * to close the ResultSet as soon as it is no longer needed.
+         */
         public Stream<DbQueryResultRow> stream() {
-            return StreamSupport.stream(spliterator(), false);
+            List<Iterator<DbQueryResultRow>> iterator = new ArrayList<>(1);
+            Supplier<Spliterator<DbQueryResultRow>> spliterator = () -> {
+                iterator.add(iterator());
+                return Spliterators.spliteratorUnknownSize(iterator.get(0), Spliterator.ORDERED | Spliterator.NONNULL);
+            };
+            return StreamSupport.stream(spliterator, Spliterator.ORDERED | Spliterator.NONNULL, false).onClose(() -> {
+                for (Iterator<DbQueryResultRow> i : iterator)
+                    if (i instanceof DbQueryResultRowIterator) ((DbQueryResultRowIterator) i).close();
+            });
         }
         
         /** 
@@ -368,11 +481,12 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
          */
         public <T> List<T> toObjectList(Class<T> cl, String stringColumnName) {
             try {
+                Constructor<T> constructor = cl.getConstructor(String.class);
                 Iterator<DbQueryResultRow> i = iterator();
                 List<T> result = new ArrayList<>();
                 while (i.hasNext()) {
                     String val = i.next().getString(stringColumnName);
-                    T obj = cl.getConstructor(String.class).newInstance(val);
+                    T obj = constructor.newInstance(val);
                     result.add(obj);
                 }
                 return result;
@@ -382,6 +496,28 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             }
         }
         
+        /** Reads all rows in the result set, and converts each one into an object using "mapper". */
+        public <T> List<T> map(RowMapper<T> mapper) {
+            List<T> result = new ArrayList<>();
+            for (DbQueryResultRow row : this) result.add(mapper.map(row));
+            return result;
+        }
+        
+        /** 
+         * Reads all rows in the result set, and creates an object of type "cl" for each row,
+         * by calling its public no-arg constructor and then its setters or fields named after the columns.
+         * @see BeanRowMapper
+         */
+        public <T> List<T> toList(Class<T> cl) {
+            List<T> result = new ArrayList<>();
+            RowMapper<T> mapper = null;
+            for (DbQueryResultRow row : this) {
+                if (mapper == null) mapper = BeanRowMapper.forRow(cl, row);
+                result.add(mapper.map(row));
+            }
+            return result;
+        }
+        
         /** 
          * Reads all rows in the result set, finds the string column "stringColumnName" and creates objects of type "cl" by
          * calling its constructor taking a single string argument. 
@@ -390,6 +526,28 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             return new HashSet<T>(toObjectList(cl, stringColumnName));
         }
 
+        /** 
+         * Writes all rows as a JSON array of objects, one property per column, directly from the ResultSet.
+         * @see DbQueryResultJsonWriter
+         */
+        public void writeJson(JsonGenerator gen) throws IOException {
+            gen.writeStartArray();
+            DbQueryResultJsonWriter writer = null;
+            for (DbQueryResultRow row : this) {
+                if (writer == null) writer = new DbQueryResultJsonWriter(row);
+                writer.writeRow(gen, row);
+            }
+            gen.writeEndArray();
+        }
+        
+        /** Writes all rows as a UTF-8 JSON array of objects, see {@link #writeJson(JsonGenerator)}. Does not close the stream. */
+        public void writeJson(OutputStream out) throws IOException {
+            try (JsonGenerator gen = DbQueryResultJsonWriter.jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+                gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                writeJson(gen);
+            }
+        }
+
         public Set<Integer> toIntegerSet(String columnName) {
             Set<Integer> result = new HashSet<>();
             for (DbQueryResultRow row : this) result.add(row.getInt(columnName));
@@ -403,6 +561,18 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         }
     }
     
+    protected static class MemoizedQueryKey {
+        final String sql;
+        final Object[] args;
+        MemoizedQueryKey(String sql, Object[] args) { this.sql = sql; this.args = args.clone(); }
+        
+        @Override public boolean equals(Object o) {
+            if ( ! (o instanceof MemoizedQueryKey)) return false;
+            return sql.equals(((MemoizedQueryKey) o).sql) && Arrays.deepEquals(args, ((MemoizedQueryKey) o).args);
+        }
+        @Override public int hashCode() { return 31 * sql.hashCode() + Arrays.deepHashCode(args); }
+    }
+    
     // ---------------------------------------------------------------------------------------------------------------
     // Internal methods
     // ---------------------------------------------------------------------------------------------------------------
@@ -570,6 +740,7 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             if (uniqueConstraintViolationOrNull!=null || isForeignKeyConstraintViolation) {
                 if (initialState != null) {
                     connection.rollback(initialState);
+                    forgetMemoizedQueries();
                     connection.releaseSavepoint(initialState);
                 }
                 if (uniqueConstraintViolationOrNull!=null) throw new UniqueConstraintViolation(uniqueConstraintViolationOrNull, exception);
@@ -583,13 +754,122 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         catch (SQLException e) { throw new RuntimeException(e); }
     }
     
+    /** 
+     * A SELECT which is executed for its results only: not a WITH, which may contain data-modifying statements,
+     * nor a locking read such as SELECT .. FOR UPDATE
+     */
+    protected static boolean isPlainSelect(String sql) {
+        return sql.trim().matches("(?is)SELECT\\b.*") 
+            && ! sql.matches("(?is).*\\b(FOR\\s+(UPDATE|SHARE|NO\\s+KEY\\s+UPDATE|KEY\\s+SHARE)|LOCK\\s+IN\\s+SHARE\\s+MODE)\\b.*");
+    }
+    
+    /** 
+     * If a {@link SlowQueryLog} is set and the statement took too long, adds it to the log, without its plan.
+     * @return null if the statement was not slow
+     */
+    protected SlowQueryLog.SlowQuery recordIfSlow(long durationNanos, String sql, Object[] args) {
+        if (slowQueryLog == null || ! slowQueryLog.isSlow(durationNanos)) return null;
+        SlowQueryLog.SlowQuery result = new SlowQueryLog.SlowQuery(sql, getSqlForLog(sql, args), durationNanos, null, false);
+        slowQueryLog.add(result);
+        return result;
+    }
+    
+    /** 
+     * Fetches the plan of a slow statement and attaches it to its entry in the log.
+     * Must be called after the statement's ResultSet has been closed.
+     * Only plain SELECTs are explained with EXPLAIN ANALYZE, as that executes the statement again;
+     * its effects, for example of functions called by the SELECT, are rolled back.
+     */
+    protected void explain(SlowQueryLog log, SlowQueryLog.SlowQuery slowQuery, String sql, Object[] args) {
+        boolean analyze = isPlainSelect(sql) && log.shouldExplainAnalyze();
+        boolean explainable = sql.trim().matches("(?is)(SELECT|WITH|INSERT|UPDATE|DELETE)\\b.*");
+        String explain;
+        switch (product) {
+            case postgres: explain = analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN "; break;
+            case mysql: explain = analyze ? "EXPLAIN ANALYZE " : "EXPLAIN "; break;
+            default: explain = null;
+        }
+        
+        StringBuilder plan = null;
+        if (explain != null && explainable && connection != null) {
+            try {
+                StringBuilder result = new StringBuilder();
+                // On PostgreSQL, a failed EXPLAIN must not abort the transaction; and an EXPLAIN ANALYZE must have no effect
+                Savepoint beforeExplain = connection.setSavepoint();
+                try (ResultSet rs = insertParamsToPreparedStatement(explain + sql, args).executeQuery()) {
+                    int columnCount = rs.getMetaData().getColumnCount();
+                    while (rs.next()) {
+                        for (int c = 1; c <= columnCount; c++) {
+                            if (c > 1) result.append("\t");
+                            result.append(rs.getString(c));
+                        }
+                        result.append("\n");
+                    }
+                }
+                finally {
+                    connection.rollback(beforeExplain);
+                    connection.releaseSavepoint(beforeExplain);
+                }
+                plan = result;
+            }
+            catch (SQLException | RuntimeException e) {
+                Logger.getLogger(SlowQueryLog.class).warn("Cannot fetch plan of slow query: " + getSqlForLog(sql, args), e);
+            }
+        }
+        
+        if (plan != null) log.onPlanFetched(slowQuery, plan.toString(), analyze);
+    }
+    
+    /** Warns, once per shape, if statements of the same shape have been executed too often in this transaction */
+    protected void countStatementShape(String sql) {
+        if (repeatedStatementWarningThreshold <= 0) return;
+        
+        String shape = getSqlShape(sql);
+        int count = statementCountForShape.merge(shape, 1, Integer::sum);
+        if (count == repeatedStatementWarningThreshold + 1)
+            Logger.getLogger(DbTransaction.class.getName() + "." + "repeatedStatement").warn("Statement executed more than " 
+                + repeatedStatementWarningThreshold + " times in one transaction, consider fetching the data with one query: "
+                + shape, new Throwable("Stack trace of execution #" + count));
+    }
+    
+    /** Reads all rows, so that they can be read again, any number of times, after the statement has been re-used */
+    protected static CachedRowSet newMemoizedRows(ResultSet rs) throws SQLException {
+        synchronized (DbTransaction.class) {
+            if (rowSetFactory == null) rowSetFactory = RowSetProvider.newFactory();
+        }
+        CachedRowSet result = rowSetFactory.createCachedRowSet();
+        result.populate(rs);
+        
+        // DbQueryResultRow reads columns by their label (e.g. "AS x"), but CachedRowSet finds columns by their name
+        RowSetMetaData md = (RowSetMetaData) result.getMetaData();
+        for (int c = 1; c <= md.getColumnCount(); c++) md.setColumnName(c, md.getColumnLabel(c));
+        
+        return result;
+    }
+    
+    protected void forgetMemoizedQueries() {
+        memoizedQueries.clear();
+    }
+    
     protected void closeConnection() {
         try {
+            for (ConnectionClosingListener l : connectionClosingListeners) {
+                try { l.connectionClosing(connection); }
+                catch (SQLException | RuntimeException e) { Logger.getLogger(getClass()).error("Connection closing listener failed", e); }
+            }
+            connectionClosingListeners.clear();
             for (PreparedStatement p : preparedStatements.values()) p.close();
             connection.close();
-            connection = null;
         }
         catch (SQLException ignored) {  }  // ignore errors on closing
+        finally {
+            connection = null;
+            for (TransactionEndedListener l : transactionEndedListeners) {
+                try { l.transactionHasEnded(); }
+                catch (RuntimeException e) { Logger.getLogger(getClass()).error("Transaction ended listener failed", e); }
+            }
+            transactionEndedListeners.clear();
+        }
     }
     
     // ---------------------------------------------------------------------------------------------------------------
@@ -597,6 +877,16 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
     // ---------------------------------------------------------------------------------------------------------------
     
     public DbTransaction(String jdbcUrl) throws CannotConnectToDatabaseException {
+        this(jdbcUrl, false);
+    }
+
+    /**
+     * @param readOnly on MySQL and PostgreSQL, the transaction is declared with SET TRANSACTION READ ONLY,
+     *                 so the database rejects any modifications, and can execute queries with less overhead;
+     *                 it also means {@link #attempt(Runnable)} does not need a savepoint, apart from on PostgreSQL
+     */
+    public DbTransaction(String jdbcUrl, boolean readOnly) throws CannotConnectToDatabaseException {
+        this.readOnly = readOnly;
         try {
             logNewTransaction();
 
@@ -619,6 +909,8 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
 
             if (product != DbServerProduct.sqlite) 
                 execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            if (readOnly && (product == DbServerProduct.mysql || product == DbServerProduct.postgres))
+                execute("SET TRANSACTION READ ONLY");
         }
         catch (SQLException e) {
             throw new CannotConnectToDatabaseException("cannot connect to database '"+jdbcUrl+"': JBDC driver is OK, "+
@@ -628,6 +920,7 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
 
     public DbTransaction(DbServerProduct product, Connection connection) {
         this.product = product;
+        this.readOnly = false;
         this.connection = connection;
     }
 
@@ -648,6 +941,58 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         rollbackListeners.add(listener);
     }
     
+    /** Statements slower than the log's threshold are explained and added to the log; null (default) disables this */
+    public void setSlowQueryLog(SlowQueryLog log) {
+        slowQueryLog = log;
+    }
+    
+    /** 
+     * Detects the "N+1 queries" problem, i.e. code which executes one statement per entity in a loop.
+     * If statements with the same {@link #getSqlShape(String) shape} are executed more than "threshold" times
+     * in this transaction, a warning with a stack trace is logged.
+     * @param threshold 0 (default) disables this check
+     */
+    public void setRepeatedStatementWarningThreshold(int threshold) {
+        repeatedStatementWarningThreshold = threshold;
+    }
+    
+    /** 
+     * @return the loader stored in this transaction under "name", which is created with "factory" the first time,
+     *         so that all code using this transaction shares the same batches and loaded values
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> BatchLoader<K, V> getBatchLoader(Object name, Function<DbTransaction, BatchLoader<K, V>> factory) {
+        BatchLoader<K, V> result = (BatchLoader<K, V>) batchLoaders.get(name);
+        if (result == null) batchLoaders.put(name, result = factory.apply(this));
+        return result;
+    }
+    
+    /**
+     * If enabled, the rows of each SELECT are remembered, and the same SELECT with the same parameters is answered from memory
+     * rather than from the database, until the next statement which might modify data is executed by this transaction.
+     *    <p>
+     * Intended for code which repeatedly looks up the same values (permissions, configuration) in one transaction.
+     * With the REPEATABLE READ isolation level, the database would return the same results anyway.
+     * Only plain SELECTs are memoized, not locking reads such as SELECT .. FOR UPDATE, nor WITH,
+     * and any other statement sent via {@link #query(String, Object...)}, such as INSERT .. RETURNING, forgets the memoized rows.
+     * Don't enable this if the queries call functions whose results change, such as <code>random()</code> or <code>nextval(..)</code>.
+     * Code which polls, expecting a different result each time, should use {@link #queryWithoutMemoization(String, Object...)}.
+     */
+    public void setQueryMemoization(boolean enabled) {
+        queryMemoization = enabled;
+        forgetMemoizedQueries();
+    }
+    
+    /** For example to release resources which are held for the duration of the transaction, such as locks */
+    public void addTransactionEndedListener(TransactionEndedListener listener) {
+        transactionEndedListeners.add(listener);
+    }
+    
+    /** For example to release resources which are held by the connection's session, such as MySQL's named locks */
+    public void addConnectionClosingListener(ConnectionClosingListener listener) {
+        connectionClosingListeners.add(listener);
+    }
+    
     public DSLContext jooq() {
         SQLDialect d;
         switch (product) {
@@ -656,6 +1001,7 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             default: throw new RuntimeException();
         }
         
+        forgetMemoizedQueries(); // caller might modify data
         return DSL.using(getConnection(), d);
     }
     
@@ -678,35 +1024,96 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         return result.toString();
     }
     
-    /** @return Never retuns null (but may return an empty iterable) */
-    public DbQueryResultSet query(final String sql, final Object... args) {
+    /** 
+     * SQL with literals replaced by "?", and "IN (?, ?, ..)" lists shortened to "IN (?)", 
+     * so that statements which only differ by their parameters have the same shape.
+     */
+    public static String getSqlShape(String sql) {
+        return sql
+            .replaceAll("'(?:[^']|'')*'", "?")
+            .replaceAll("(?<![\\w$.])-?\\d+(?:\\.\\d+)?\\b", "?")
+            .replaceAll("\\s+", " ")
+            .replaceAll("(?i)\\bIN \\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)", "IN (?)")
+            .trim();
+    }
+    
+    /** @param useMemoization false if the query should always be sent to the database, see {@link #setQueryMemoization(boolean)} */
+    protected DbQueryResultSet query(boolean useMemoization, final String sql, final Object... args) {
         return new DbQueryResultSet() {
             public Iterator<DbQueryResultRow> iterator() {
+                boolean plainSelect = isPlainSelect(sql);
+                boolean memoize = queryMemoization && useMemoization && plainSelect;
+                if ( ! plainSelect) forgetMemoizedQueries(); // might modify data, e.g. INSERT .. RETURNING
+                try {
+                    CachedRowSet memoizedRows = memoize ? memoizedQueries.get(new MemoizedQueryKey(sql, args)) : null;
+                    if (memoizedRows != null) return new DbQueryResultRowIterator(memoizedRows.createShared(), false);
+                }
+                catch (SQLException e) { throw new SqlException(getSqlForLog(sql, args), e); }
+                
+                countStatementShape(sql);
+                DbQueryResultRowIterator result;
+                long durationNanos;
                 try (Timer ignored = new Timer("SQL: " + getSqlForLog(sql, args))) {
+                    long start = System.nanoTime();
                     PreparedStatement ps = insertParamsToPreparedStatement(sql, args);
                     ResultSet rs = ps.executeQuery();
-                    return new DbQueryResultRowIterator(rs);
+                    if (memoize) {
+                        CachedRowSet memoizedRows = newMemoizedRows(rs);
+                        rs.close();
+                        memoizedQueries.put(new MemoizedQueryKey(sql, args), memoizedRows);
+                        rs = memoizedRows.createShared();
+                    }
+                    result = new DbQueryResultRowIterator(rs, ! memoize);
+                    durationNanos = System.nanoTime() - start;
                 }
                 catch (SQLException e) { throw new SqlException(getSqlForLog(sql, args), e); }
+                
+                SlowQueryLog log = slowQueryLog;
+                SlowQueryLog.SlowQuery slowQuery = recordIfSlow(durationNanos, sql, args);
+                if (slowQuery != null) result.runAfterClose(() -> explain(log, slowQuery, sql, args));
+                return result;
             }
         };
     }
     
+    /** @return Never retuns null (but may return an empty iterable) */
+    public DbQueryResultSet query(final String sql, final Object... args) {
+        return query(true, sql, args);
+    }
+    
+    /** 
+     * Always sends the query to the database, even if {@link #setQueryMemoization(boolean)} is enabled, 
+     * for example to poll for a value which is expected to change.
+     */
+    public DbQueryResultSet queryWithoutMemoization(final String sql, final Object... args) {
+        return query(false, sql, args);
+    }
+    
     /** @return Never retuns null (but may return an empty iterable) */
     public DbQueryResultSet query(CharSequence sql, List<?> args) {
         return query(sql.toString(), args.toArray());
     }
     
     public void execute(String sql, Object... args) throws SqlException {
-        try { insertParamsToPreparedStatement(sql, args).executeUpdate(); } // returns int = row count processed; we ignore
+        forgetMemoizedQueries();
+        countStatementShape(sql);
+        try { 
+            long start = System.nanoTime();
+            insertParamsToPreparedStatement(sql, args).executeUpdate(); // returns int = row count processed; we ignore
+            SlowQueryLog.SlowQuery slowQuery = recordIfSlow(System.nanoTime() - start, sql, args);
+            if (slowQuery != null) explain(slowQueryLog, slowQuery, sql, args);
+        }
         catch (SQLException e) { throw new SqlException("database error ("+ getSqlForLog(sql, args)+")", e); }
     }
 
     /**
      * Sets a savepoint as is necessary on PostgreSQL, runs the code,
      * then rolls back to the savepoint on RuntimeException or discards the savepoint on success.
+     * In a read-only transaction there is nothing to roll back, so no savepoint is set, apart from on PostgreSQL,
+     * where it is necessary to be able to continue using the transaction after an error.
      */
     public void attempt(Runnable r) {
+        if (readOnly && product != DbServerProduct.postgres) { r.run(); return; }
         try {
             Savepoint initialState = connection.setSavepoint();
             try {
@@ -714,6 +1121,7 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
             }
             catch (RuntimeException e) {
                 connection.rollback(initialState);
+                forgetMemoizedQueries();
                 throw e;
             }
             finally {
@@ -780,12 +1188,53 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         }
     }
     
+    /** 
+     * Generated SQL depends on the product, the table, the columns in the order of the map, and the placeholder
+     * for each value (see {@link #getQuestionMarkForValue(Object)}, which depends on {@link #addPostgresTypeForEnum}),
+     * but not on the values themselves.
+     */
+    protected List<Object> newGeneratedSqlKey(String statement, String table, Map<String, ?> cols) {
+        List<Object> result = new ArrayList<>(3 + 2*cols.size());
+        result.add(product);
+        result.add(statement);
+        result.add(table);
+        for (Entry<String, ?> c : cols.entrySet()) {
+            result.add(c.getKey());
+            result.add(getQuestionMarkForValue(c.getValue()));
+        }
+        return result;
+    }
+    
+    /** @return SQL whose parameters are the values of "cols", in the order of the map */
+    protected String getInsertSql(String table, Map<String, ?> cols) {
+        List<Object> key = newGeneratedSqlKey("INSERT", table, cols);
+        String result = generatedSql.get(key);
+        if (result == null) {
+            StringBuilder sql = new StringBuilder();
+            appendInsertStatement(sql, new ArrayList<>(), table, cols);
+            generatedSql.put(key, result = sql.toString());
+        }
+        return result;
+    }
+    
+    /** @return SQL up to and including the SET clauses, whose parameters are the values of "cols", in the order of the map */
+    protected String getUpdateSetSql(String table, Map<String, ?> cols) {
+        List<Object> key = newGeneratedSqlKey("UPDATE", table, cols);
+        String result = generatedSql.get(key);
+        if (result == null) {
+            StringBuilder sql = new StringBuilder();
+            sql.append(" UPDATE ");
+            sql.append(table);
+            sql.append(" SET ");
+            appendSetClauses(sql, new ArrayList<>(), cols);
+            generatedSql.put(key, result = sql.toString());
+        }
+        return result;
+    }
+    
     @SuppressFBWarnings("SQL_PREPARED_STATEMENT_GENERATED_FROM_NONCONSTANT_STRING")
     public void insert(String table, Map<String, ?> cols) {
-        StringBuilder sql = new StringBuilder();
-        List<Object> params = new ArrayList<>();
-        appendInsertStatement(sql, params, table, cols);
-        execute(sql, params);
+        execute(getInsertSql(table, cols), cols.values().toArray());
     }
 
     public void insert(TableRecord<?> record) {
@@ -826,18 +1275,121 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
     }
     
     public void update(String table, Map<String, ?> cols, String where, Object... whereParams) {
-        StringBuilder sql = new StringBuilder();
-        List<Object> params = new ArrayList<>();
+        Object[] params = new Object[cols.size() + whereParams.length];
+        int i = 0;
+        for (Object v : cols.values()) params[i++] = v;
+        System.arraycopy(whereParams, 0, params, i, whereParams.length);
+        
+        execute(getUpdateSetSql(table, cols) + " WHERE " + where, params);
+    }
+    
+    /**
+     * Updates many rows, each with different values, using one statement per "rowsPerStatement" rows.
+     * Each map in "rows" contains the key columns, which identify the row to update, and the columns to update.
+     * All maps must contain the same columns.
+     *    <p>
+     * On PostgreSQL this is <code>UPDATE t SET .. FROM (VALUES (..), (..)) v WHERE t.key = v.key</code>,
+     * on MySQL <code>UPDATE t JOIN (SELECT .. UNION ALL SELECT ..) v ON t.key = v.key SET ..</code>,
+     * on other databases each row is updated with its own statement.
+     * On PostgreSQL, the type of each VALUES column is resolved by PostgreSQL from the values of all rows of the statement,
+     * as for UNION, not from the table being updated. So a column whose values are all NULL within one statement
+     * is resolved as text, which fails if the table's column is not text,
+     * and values of different Java types in one column, such as Integer and String, may fail.
+     * Fewer rows than "rowsPerStatement" are updated per statement if there would otherwise be more than 
+     * {@link #maxBindParametersPerStatement} parameters, which is the limit of PostgreSQL's JDBC driver.
+     */
+    public void updateBatch(String table, List<String> keyColumns, List<? extends Map<String, ?>> rows, int rowsPerStatement) {
+        if (rows.isEmpty()) return;
+        if (rowsPerStatement < 1) throw new IllegalArgumentException("rowsPerStatement must be at least 1");
         
-        sql.append(" UPDATE ");
-        sql.append(table);
-        sql.append(" SET ");
-        appendSetClauses(sql, params, cols);
-        sql.append(" WHERE ");
-        sql.append(where);
-        params.addAll(Arrays.asList(whereParams));
+        List<String> columns = new ArrayList<>(rows.get(0).keySet());
+        List<String> updateColumns = new ArrayList<>(columns);
+        updateColumns.removeAll(keyColumns);
+        if ( ! columns.containsAll(keyColumns)) throw new IllegalArgumentException("Rows must contain key columns " + keyColumns);
+        for (Map<String, ?> row : rows)
+            if (row.size() != columns.size() || ! row.keySet().containsAll(columns))
+                throw new IllegalArgumentException("All rows must contain the same columns " + columns + " but found " + row.keySet());
+        if (updateColumns.isEmpty()) return;
         
-        execute(sql, params);
+        int rowsPerChunk = Math.max(1, Math.min(rowsPerStatement, maxBindParametersPerStatement / columns.size()));
+        String q = getSchemaQuote();
+        for (int start = 0; start < rows.size(); start += rowsPerChunk) {
+            List<? extends Map<String, ?>> chunk = rows.subList(start, Math.min(rows.size(), start + rowsPerChunk));
+            StringBuilder sql = new StringBuilder();
+            List<Object> params = new ArrayList<>(chunk.size() * columns.size());
+            
+            switch (product) {
+                case postgres:
+                    sql.append("UPDATE ").append(table).append(" SET ");
+                    for (int c = 0; c < updateColumns.size(); c++) {
+                        if (c > 0) sql.append(", ");
+                        sql.append(q).append(updateColumns.get(c)).append(q).append(" = v.").append(q).append(updateColumns.get(c)).append(q);
+                    }
+                    sql.append(" FROM (VALUES ");
+                    for (int r = 0; r < chunk.size(); r++) {
+                        sql.append(r == 0 ? "(" : ", (");
+                        for (int c = 0; c < columns.size(); c++) {
+                            Object value = chunk.get(r).get(columns.get(c));
+                            if (c > 0) sql.append(", ");
+                            sql.append(getQuestionMarkForValue(value));
+                            params.add(value);
+                        }
+                        sql.append(")");
+                    }
+                    sql.append(") AS v(");
+                    for (int c = 0; c < columns.size(); c++) {
+                        if (c > 0) sql.append(", ");
+                        sql.append(q).append(columns.get(c)).append(q);
+                    }
+                    sql.append(") WHERE TRUE");
+                    for (String k : keyColumns) 
+                        sql.append(" AND ").append(table).append(".").append(q).append(k).append(q).append(" = v.").append(q).append(k).append(q);
+                    execute(sql.toString(), params.toArray());
+                    break;
+                    
+                case mysql:
+                    sql.append("UPDATE ").append(table).append(" JOIN (");
+                    for (int r = 0; r < chunk.size(); r++) {
+                        sql.append(r == 0 ? "SELECT " : " UNION ALL SELECT ");
+                        for (int c = 0; c < columns.size(); c++) {
+                            Object value = chunk.get(r).get(columns.get(c));
+                            if (c > 0) sql.append(", ");
+                            sql.append(getQuestionMarkForValue(value));
+                            if (r == 0) sql.append(" AS ").append(q).append(columns.get(c)).append(q);
+                            params.add(value);
+                        }
+                    }
+                    sql.append(") AS v ON TRUE");
+                    for (String k : keyColumns) 
+                        sql.append(" AND ").append(table).append(".").append(q).append(k).append(q).append(" = v.").append(q).append(k).append(q);
+                    sql.append(" SET ");
+                    for (int c = 0; c < updateColumns.size(); c++) {
+                        if (c > 0) sql.append(", ");
+                        sql.append(table).append(".").append(q).append(updateColumns.get(c)).append(q);
+                        sql.append(" = v.").append(q).append(updateColumns.get(c)).append(q);
+                    }
+                    execute(sql.toString(), params.toArray());
+                    break;
+                    
+                default:
+                    for (Map<String, ?> row : chunk) {
+                        Map<String, Object> cols = new LinkedHashMap<>();
+                        for (String c : updateColumns) cols.put(c, row.get(c));
+                        StringBuilder where = new StringBuilder("1=1");
+                        List<Object> whereParams = new ArrayList<>(keyColumns.size());
+                        for (String k : keyColumns) {
+                            where.append(" AND ").append(q).append(k).append(q).append(" = ").append(getQuestionMarkForValue(row.get(k)));
+                            whereParams.add(row.get(k));
+                        }
+                        update(table, cols, where.toString(), whereParams.toArray());
+                    }
+            }
+        }
+    }
+    
+    /** See {@link #updateBatch(String, List, List, int)}, with 1000 rows per statement */
+    public void updateBatch(String table, List<String> keyColumns, List<? extends Map<String, ?>> rows) {
+        updateBatch(table, keyColumns, rows, 1000);
     }
     
     public void updateOrThrowUniqueConstraintViolation(String table, Map<String, ?> cols, String where, Object... whereParams)
@@ -904,13 +1456,15 @@ public class DbTransaction implements DbQueryable, AutoCloseable {
         }
     }
     
+    /** The connection is closed, and transaction-ended listeners are called, even if the rollback fails */
     public void rollback() {
+        Connection c = getConnection();
         try {
-            getConnection().rollback();
+            c.rollback();
             for (RollbackListener l : rollbackListeners) l.transactionHasRolledback();
-            closeConnection();
         }
         catch (SQLException e) { throw new SqlException("Can't rollback", e); }
+        finally { closeConnection(); }
     }
     
     public void commit() {
@@ -0,0 +1,101 @@
+package com.databasesandlife.util.jdbc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.jdbc.DbTransaction.DbTransactionFactory;
+
+/**
+ * Creates read-write transactions against the primary database, and read-only transactions against its replicas.
+ *    <p>
+ * {@link #newDbTransaction()} connects to the primary, so this object can be passed wherever a
+ * {@link DbTransactionFactory} is used today. Code which only reads uses {@link #newReadOnlyDbTransaction()},
+ * or is passed {@link #getReadOnlyFactory()}. Read-only transactions are distributed over the replicas round-robin,
+ * and are created with {@link DbTransaction#DbTransaction(String, boolean) readOnly}.
+ * If there are no replicas, read-only transactions also connect to the primary.
+ *    <p>
+ * Replicas lag behind the primary, so a user who has just saved something might not see it on the next page.
+ * To avoid that, create one {@link Session} per user session, and set {@link #setReadYourWritesSeconds(int)}:
+ * for that number of seconds after any read-write transaction of the session has ended,
+ * the session's read-only transactions are also sent to the primary.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   static final ReadWriteSplittingDbTransactionFactory db = new ReadWriteSplittingDbTransactionFactory(
+ *       "jdbc:postgresql://primary/db", asList("jdbc:postgresql://replica1/db", "jdbc:postgresql://replica2/db"));
+ *
+ *   ReadWriteSplittingDbTransactionFactory.Session session = db.newSession();  // e.g. store in the HTTP session
+ *   try (DbTransaction tx = session.newReadOnlyDbTransaction()) { .. }
+ * </pre>
+ *    <p>
+ * Objects of this class, and its sessions, are thread-safe.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ReadWriteSplittingDbTransactionFactory implements DbTransactionFactory {
+
+    protected final @Nonnull String primaryJdbcUrl;
+    protected final @Nonnull List<String> replicaJdbcUrls;
+    protected final AtomicInteger nextReplica = new AtomicInteger();
+    protected volatile long readYourWritesMillis = 0;
+
+    /** Read-only transactions of a session are sent to the primary for a while after the session has written */
+    public class Session implements DbTransactionFactory {
+
+        protected volatile long lastWriteEndedMillis = 0;
+
+        /** Read-write transaction against the primary */
+        @Override public @Nonnull DbTransaction newDbTransaction() {
+            DbTransaction tx = ReadWriteSplittingDbTransactionFactory.this.newDbTransaction();
+            tx.addTransactionEndedListener(() -> lastWriteEndedMillis = System.currentTimeMillis());
+            return tx;
+        }
+
+        /** Read-only transaction against a replica, or the primary if this session has written recently */
+        public @Nonnull DbTransaction newReadOnlyDbTransaction() {
+            if (System.currentTimeMillis() - lastWriteEndedMillis < readYourWritesMillis)
+                return new DbTransaction(primaryJdbcUrl, true);
+            return ReadWriteSplittingDbTransactionFactory.this.newReadOnlyDbTransaction();
+        }
+
+        public @Nonnull DbTransactionFactory getReadOnlyFactory() {
+            return this::newReadOnlyDbTransaction;
+        }
+    }
+
+    /** @param replicaJdbcUrls may be empty */
+    public ReadWriteSplittingDbTransactionFactory(@Nonnull String primaryJdbcUrl, @Nonnull List<String> replicaJdbcUrls) {
+        this.primaryJdbcUrl = primaryJdbcUrl;
+        this.replicaJdbcUrls = new ArrayList<>(replicaJdbcUrls);
+    }
+
+    /** How long after a write a {@link Session} keeps reading from the primary; 0 (default) means never */
+    public void setReadYourWritesSeconds(int seconds) {
+        if (seconds < 0) throw new IllegalArgumentException("seconds must not be negative");
+        readYourWritesMillis = seconds * 1000L;
+    }
+
+    public @Nonnull Session newSession() {
+        return new Session();
+    }
+
+    /** Read-write transaction against the primary */
+    @Override public @Nonnull DbTransaction newDbTransaction() {
+        return new DbTransaction(primaryJdbcUrl);
+    }
+
+    /** Read-only transaction against the next replica, or the primary if there are no replicas */
+    public @Nonnull DbTransaction newReadOnlyDbTransaction() {
+        if (replicaJdbcUrls.isEmpty()) return new DbTransaction(primaryJdbcUrl, true);
+        int idx = Math.floorMod(nextReplica.getAndIncrement(), replicaJdbcUrls.size());
+        return new DbTransaction(replicaJdbcUrls.get(idx), true);
+    }
+
+    public @Nonnull DbTransactionFactory getReadOnlyFactory() {
+        return this::newReadOnlyDbTransaction;
+    }
+}
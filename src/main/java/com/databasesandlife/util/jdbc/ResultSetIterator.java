@@ -1,11 +1,15 @@
 package com.databasesandlife.util.jdbc;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Takes a {@link PreparedStatement} and creates a {@link ResultSet} and
@@ -54,6 +58,15 @@ import java.util.NoSuchElementException;
  * }
  * </pre>
  * <p>
+ * Optionally, rows can be read and converted to objects in a background thread, while the consumer is processing previous objects,
+ * see {@link #setPrefetchDepth(int)}. In this case the statement is closed, according to the {@link CloseStrategy}, by the
+ * background thread, and any exception from reading or converting is thrown from {@link #hasNext()} or {@link #next()}.
+ * As JDBC connections may not be used by two threads at once, the connection (for example the {@link DbTransaction}
+ * which created the statement) must not be used by any other code until {@link #hasNext()} has returned false,
+ * or has thrown an exception, or {@link #close()} has returned.
+ * If the iteration is not completed, call {@link #close()} to stop the background thread. If that is forgotten,
+ * the background thread stops once the iterator has been garbage collected.
+ * <p>
  * See <a href="http://www.databasesandlife.com/reading-row-by-row-into-java-from-mysql/">Reading row-by-row into Java from MySQL</a>.
  * <p>
  * This code has beem tested using Java 6 with MySQL 5.0 and the JDBC driver "MySQL Connector" 5.1.15.
@@ -61,7 +74,7 @@ import java.util.NoSuchElementException;
  * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
  * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
  */
-public abstract class ResultSetIterator<T> implements Iterator<T> {
+public abstract class ResultSetIterator<T> implements Iterator<T>, AutoCloseable {
     
     protected enum State {
                                                 BEFORE_EXECUTE,
@@ -81,6 +94,89 @@ public abstract class ResultSetIterator<T> implements Iterator<T> {
     protected final CloseStrategy closeStrategy;
     protected ResultSet resultSet;
     protected T nextObject;
+    
+    protected static final Object endOfResults = new Object(), nullObject = new Object();
+    protected static class PrefetchFailure { Throwable cause; PrefetchFailure(Throwable c) { cause = c; } }
+    protected int prefetchDepth = 0;
+    protected BlockingQueue<Object> prefetchQueue = null;
+    protected Object prefetchHead = null;             // null means not yet taken from queue
+    protected Prefetcher prefetcher = null;
+    
+    /** The iterators whose background threads should be stopped, as nothing can consume their results any more */
+    protected static final ReferenceQueue<ResultSetIterator<?>> collectedIterators = new ReferenceQueue<>();
+    protected static Thread collectedIteratorsThread = null;
+    
+    protected static class IteratorReference extends WeakReference<ResultSetIterator<?>> {
+        final Prefetcher prefetcher;
+        IteratorReference(ResultSetIterator<?> iterator, Prefetcher prefetcher) {
+            super(iterator, collectedIterators);
+            this.prefetcher = prefetcher;
+        }
+    }
+    
+    /** 
+     * Reads rows in the background thread. Only references the iterator weakly while waiting for the consumer, 
+     * so that an iterator which is no longer used can be garbage collected, which stops this thread.
+     */
+    protected static class Prefetcher implements Runnable {
+        final IteratorReference iterator;
+        final PreparedStatement statement;
+        final CloseStrategy closeStrategy;
+        final BlockingQueue<Object> queue;
+        final Thread thread;
+        volatile boolean cancelled = false;
+        
+        Prefetcher(ResultSetIterator<?> iterator) {
+            this.iterator = new IteratorReference(iterator, this);
+            this.statement = iterator.statement;
+            this.closeStrategy = iterator.closeStrategy;
+            this.queue = iterator.prefetchQueue;
+            this.thread = new Thread(this, iterator.getClass().getSimpleName() + "-prefetch");
+            thread.setDaemon(true);
+        }
+        
+        /** Empties the queue, so that a put which is waiting for space returns, and the thread sees it is cancelled */
+        void cancel() {
+            cancelled = true;
+            queue.clear();
+        }
+        
+        @Override public void run() {
+            Throwable failure = null;
+            ResultSet resultSet = null;
+            try {
+                resultSet = statement.executeQuery();
+                ResultSetIterator<?> it = iterator.get();
+                if (it != null) synchronized (it) { it.resultSet = resultSet; it.afterQueryExecuted(); }
+                while ( ! cancelled && resultSet.next()) {
+                    it = iterator.get();
+                    if (it == null) break;
+                    Object obj = it.newObjectForRow(resultSet);
+                    it = null;  // not referenced while waiting for the consumer
+                    queue.put(obj == null ? nullObject : obj);
+                }
+            }
+            catch (InterruptedException e) { cancelled = true; }
+            catch (Throwable e) { failure = e; }
+            
+            // Release the connection before the consumer sees the end of the results
+            try { close(resultSet, statement, closeStrategy); }
+            catch (Throwable e) { if (failure == null) failure = e; }
+            
+            try { if ( ! cancelled) queue.put(failure == null ? endOfResults : new PrefetchFailure(failure)); }
+            catch (InterruptedException ignored) { }
+        }
+    }
+    
+    protected static synchronized void startCollectedIteratorsThread() {
+        if (collectedIteratorsThread != null) return;
+        collectedIteratorsThread = new Thread(() -> {
+            try { while (true) ((IteratorReference) collectedIterators.remove()).prefetcher.cancel(); }
+            catch (InterruptedException ignored) { }
+        }, ResultSetIterator.class.getSimpleName() + "-collected");
+        collectedIteratorsThread.setDaemon(true);
+        collectedIteratorsThread.start();
+    }
 
     /**
      * @param sqlForLog What SQL was executed? This is only used to populate the text of Exceptions
@@ -91,9 +187,27 @@ public abstract class ResultSetIterator<T> implements Iterator<T> {
         this.closeStrategy = closeStrategy;
     }
     
+    /**
+     * Reads rows, and converts them to objects, in a background thread, up to "depth" objects ahead of the consumer.
+     * Must be called before the iteration starts. 0 (default) means rows are read in the consumer's thread.
+     */
+    public void setPrefetchDepth(int depth) {
+        if (state != State.BEFORE_EXECUTE) throw new IllegalStateException("Iteration has already started");
+        if (depth < 0) throw new IllegalArgumentException("depth must not be negative");
+        prefetchDepth = depth;
+    }
+    
     protected synchronized void stateTransitionToReturnResults() {
         try {
             if (state != State.BEFORE_EXECUTE) return;
+            if (prefetchDepth > 0) {
+                prefetchQueue = new ArrayBlockingQueue<>(prefetchDepth);
+                state = State.RETURN_RESULTS;
+                prefetcher = new Prefetcher(this);
+                startCollectedIteratorsThread();
+                prefetcher.thread.start();
+                return;
+            }
             resultSet = statement.executeQuery();
             state = State.RETURN_RESULTS;
             afterQueryExecuted();
@@ -108,16 +222,20 @@ public abstract class ResultSetIterator<T> implements Iterator<T> {
      */
     protected void afterQueryExecuted() throws SQLException { }
     
+    protected static void close(ResultSet resultSet, PreparedStatement statement, CloseStrategy closeStrategy) throws SQLException {
+        if (resultSet != null) resultSet.close();
+        Connection connection = statement.getConnection();
+        switch (closeStrategy) {
+            case CLOSE_NOTHING: break;
+            case CLOSE_STATEMENT: statement.close(); break;
+            case CLOSE_CONNECTION: statement.close(); connection.close(); break;
+        }
+    }
+    
     protected synchronized void stateTransitionToFinished() {
         try {
             if (state != State.RETURN_RESULTS) return;
-            resultSet.close();
-            Connection connection = statement.getConnection();
-            switch (closeStrategy) {
-                case CLOSE_NOTHING: break;
-                case CLOSE_STATEMENT: statement.close(); break;
-                case CLOSE_CONNECTION: statement.close(); connection.close(); break;
-            }
+            close(resultSet, statement, closeStrategy);
             state = State.FINISHED;
         }
         catch (SQLException e) { throw new RuntimeException(sqlForLog + ": " + e.getMessage(), e); }
@@ -134,8 +252,31 @@ public abstract class ResultSetIterator<T> implements Iterator<T> {
      */
     protected abstract T newObjectForRow(ResultSet r) throws SQLException;
 
+    /** Only called by the consumer's thread when prefetching */
+    protected boolean hasNextPrefetched() {
+        try {
+            if (prefetchHead == null) prefetchHead = prefetchQueue.take();
+        }
+        catch (InterruptedException e) { throw new RuntimeException(sqlForLog + ": interrupted", e); }
+        
+        if (prefetchHead instanceof PrefetchFailure) {
+            Throwable cause = ((PrefetchFailure) prefetchHead).cause;
+            throw new RuntimeException(sqlForLog + ": " + cause.getMessage(), cause);
+        }
+        return prefetchHead != endOfResults;
+    }
+    
+    @SuppressWarnings("unchecked")
+    protected T nextPrefetched() {
+        if ( ! hasNextPrefetched()) throw new NoSuchElementException();
+        Object result = prefetchHead;
+        prefetchHead = null;
+        return result == nullObject ? null : (T) result;
+    }
+
     public boolean hasNext() {
         if (state == State.BEFORE_EXECUTE) stateTransitionToReturnResults();
+        if (prefetchQueue != null) return hasNextPrefetched();
         if (state == State.FINISHED) return false;
         return true;
     }
@@ -143,6 +284,7 @@ public abstract class ResultSetIterator<T> implements Iterator<T> {
     public T next() {
         try {
             if (state == State.BEFORE_EXECUTE) stateTransitionToReturnResults();
+            if (prefetchQueue != null) return nextPrefetched();
             if (state == State.FINISHED) throw new NoSuchElementException();
             T result = nextObject;
             if (resultSet.next()) nextObject = newObjectForRow(resultSet);
@@ -155,4 +297,19 @@ public abstract class ResultSetIterator<T> implements Iterator<T> {
     public void remove() {
         throw new UnsupportedOperationException();
     }
+    
+    /** 
+     * Closes the ResultSet, and the statement or connection according to the {@link CloseStrategy}, 
+     * if the iteration has not been completed. When prefetching, this is done by the background thread, 
+     * and this method waits for it to stop.
+     */
+    @Override public void close() {
+        if (prefetcher != null) {
+            prefetcher.cancel();
+            try { prefetcher.thread.join(); }
+            catch (InterruptedException e) { throw new RuntimeException(sqlForLog + ": interrupted", e); }
+            prefetchHead = endOfResults;
+        }
+        else stateTransitionToFinished();
+    }
 }
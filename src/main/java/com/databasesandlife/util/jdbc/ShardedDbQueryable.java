@@ -0,0 +1,286 @@
+package com.databasesandlife.util.jdbc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import com.databasesandlife.util.ThreadPool;
+import com.databasesandlife.util.ThreadPoolService;
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultSet;
+import com.databasesandlife.util.jdbc.DbTransaction.DbTransactionFactory;
+import com.databasesandlife.util.jdbc.DbTransaction.SqlException;
+
+/**
+ * Read-only access to data which is split over multiple databases ("shards") with the same schema.
+ *    <p>
+ * Each query is sent to all shards in parallel, each shard in its own {@link DbTransaction},
+ * by the threads of a {@link ThreadPoolService}, which are reused between queries.
+ * The service is either created by this object, with one thread per shard, and stopped by {@link #close()},
+ * or is passed to the constructor, in which case it may be shared with other work, and is not stopped.
+ * Results can be merged in two ways:
+ * <ul>
+ *   <li>{@link #query(String, Object...)} returns rows in no particular order.
+ *       The rows of whichever shard responded first are returned first.
+ *   <li>{@link #queryOrdered(Comparator, Integer, String, Object...)} returns rows ordered by a sort key,
+ *       by merging the rows of each shard, which must be sorted by the same key with ORDER BY.
+ *       A LIMIT can be applied, in which case each shard is also only asked for that number of rows.
+ * </ul>
+ *    <p>
+ * Each shard's transaction is rolled back after its rows have all been read.
+ * If the rows of a query are not all read, use {@link #close()} to roll back all transactions still open,
+ * and to stop the threads, if they were created by this object.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   try (ShardedDbQueryable db = new ShardedDbQueryable(asList(
+ *          () -&gt; new DbTransaction(jdbc1), () -&gt; new DbTransaction(jdbc2)))) {
+ *      for (DbQueryResultRow r : db.queryOrdered(comparing(r -&gt; r.getString("name")), 10,
+ *              "SELECT * FROM customer ORDER BY name")) { .. }
+ *   }
+ * </pre>
+ *    <p>
+ * As with {@link DbTransaction}, objects of this class should be used by one thread at a time.
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ShardedDbQueryable implements DbQueryable, AutoCloseable {
+
+    protected final @Nonnull List<DbTransactionFactory> shards;
+    protected final @Nonnull ThreadPoolService service;
+    protected final boolean ownsService;
+    // Guarded by openTransactions
+    protected final List<DbTransaction> openTransactions = new ArrayList<>();
+    /** Incremented by {@link #rollbackOpenTransactions()}; shard queries started before then roll back their own transactions */
+    protected long rollbackCount = 0;
+
+    protected static class ShardResult {
+        int shardIdx;
+        DbTransaction tx;
+        Iterator<DbQueryResultRow> rows;
+        RuntimeException exception;
+    }
+
+    protected static class ShardHead {
+        ShardResult shard;
+        DbQueryResultRow row;
+    }
+
+    protected ShardedDbQueryable(
+        @Nonnull ThreadPoolService service, boolean ownsService, @Nonnull List<DbTransactionFactory> shards
+    ) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+        this.shards = new ArrayList<>(shards);
+        this.service = service;
+        this.ownsService = ownsService;
+    }
+
+    /** Queries are executed by threads of the service, which is not stopped by {@link #close()} */
+    public ShardedDbQueryable(@Nonnull ThreadPoolService service, @Nonnull List<DbTransactionFactory> shards) {
+        this(service, false, shards);
+    }
+
+    /** Queries are executed by one thread per shard, which are stopped by {@link #close()} */
+    public ShardedDbQueryable(@Nonnull List<DbTransactionFactory> shards) {
+        this(new ThreadPoolService(ShardedDbQueryable.class.getSimpleName(), Math.max(1, shards.size())), true, shards);
+    }
+
+    /** Waits until all shards have executed the query; the query's exceptions are reported via each {@link ShardResult} */
+    protected @Nonnull BlockingQueue<ShardResult> executeOnAllShards(@Nonnull String sql, @Nonnull Object[] args) {
+        BlockingQueue<ShardResult> result = new LinkedBlockingQueue<>();
+        long rollbackCountAtStart;
+        synchronized (openTransactions) { rollbackCountAtStart = rollbackCount; }
+        ThreadPool job = new ThreadPool(service);
+        for (int i = 0; i < shards.size(); i++) {
+            ShardResult r = new ShardResult();
+            r.shardIdx = i;
+            job.addTask(() -> executeOnShard(r, sql, args, rollbackCountAtStart, result));
+        }
+        try { job.execute(); }
+        catch (RuntimeException e) { rollbackOpenTransactions(); throw e; }
+        return result;
+    }
+
+    /** 
+     * The transaction is only registered in {@link #openTransactions} once the query has returned, 
+     * so that it is never rolled back by another thread while it is being used by this one
+     */
+    protected void executeOnShard(
+        @Nonnull ShardResult r, @Nonnull String sql, @Nonnull Object[] args,
+        long rollbackCountAtStart, @Nonnull BlockingQueue<ShardResult> result
+    ) {
+        try {
+            r.tx = shards.get(r.shardIdx).newDbTransaction();
+            r.rows = r.tx.query(sql, args).iterator();
+        }
+        catch (RuntimeException e) {
+            r.exception = e;
+        }
+
+        boolean rolledBackMeanwhile;
+        synchronized (openTransactions) {
+            rolledBackMeanwhile = rollbackCount != rollbackCountAtStart;
+            if (r.tx != null && r.exception == null && ! rolledBackMeanwhile) openTransactions.add(r.tx);
+        }
+        if (r.tx != null && (r.exception != null || rolledBackMeanwhile)) {
+            try { r.tx.rollbackIfConnectionStillOpen(); }
+            catch (RuntimeException ignored) { } // ignore errors on closing
+        }
+        if (rolledBackMeanwhile && r.exception == null) 
+            r.exception = new IllegalStateException("Transactions were rolled back while the query was executing");
+        result.add(r);
+    }
+
+    protected @Nonnull ShardResult takeShardResult(@Nonnull BlockingQueue<ShardResult> results) {
+        try {
+            ShardResult r = results.take();
+            if (r.exception != null) {
+                rollbackOpenTransactions();
+                throw new SqlException("Shard " + r.shardIdx, r.exception);
+            }
+            return r;
+        }
+        catch (InterruptedException e) { 
+            Thread.currentThread().interrupt();
+            rollbackOpenTransactions(); 
+            throw new RuntimeException(e); 
+        }
+    }
+
+    protected void shardFinished(@Nonnull ShardResult r) {
+        synchronized (openTransactions) { openTransactions.remove(r.tx); }
+        r.tx.rollbackIfConnectionStillOpen();
+    }
+
+    /** Rows are returned in no particular order, the rows of the first shard to respond are returned first */
+    @Override public @Nonnull DbQueryResultSet query(@Nonnull String sql, @Nonnull Object... args) {
+        return new DbQueryResultSet() {
+            @Override public Iterator<DbQueryResultRow> iterator() {
+                BlockingQueue<ShardResult> results = executeOnAllShards(sql, args);
+                return new Iterator<DbQueryResultRow>() {
+                    int shardsTaken = 0;
+                    @CheckForNull ShardResult current = null;
+
+                    @Override public boolean hasNext() {
+                        while (true) {
+                            if (current != null && current.rows.hasNext()) return true;
+                            if (current != null) { shardFinished(current); current = null; }
+                            if (shardsTaken == shards.size()) return false;
+                            current = takeShardResult(results);
+                            shardsTaken++;
+                        }
+                    }
+
+                    @Override public DbQueryResultRow next() {
+                        if ( ! hasNext()) throw new NoSuchElementException();
+                        return current.rows.next();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override public @Nonnull DbQueryResultSet query(@Nonnull CharSequence sql, @Nonnull List<?> args) {
+        return query(sql.toString(), args.toArray());
+    }
+
+    /**
+     * Rows are returned ordered by "sortKey".
+     *
+     * @param sortKey the order of the rows returned by each shard, which must be the same as the ORDER BY of "sql"
+     * @param limitOrNull if not null, "LIMIT x" is appended to the SQL sent to each shard, and at most this number of rows
+     *                    is returned overall; in this case "sql" must not contain a LIMIT clause
+     */
+    public @Nonnull DbQueryResultSet queryOrdered(
+        @Nonnull Comparator<DbQueryResultRow> sortKey, @CheckForNull Integer limitOrNull,
+        @Nonnull String sql, @Nonnull Object... args
+    ) {
+        String shardSql = limitOrNull == null ? sql : (sql + " LIMIT " + limitOrNull);
+        return new DbQueryResultSet() {
+            @Override public Iterator<DbQueryResultRow> iterator() {
+                BlockingQueue<ShardResult> results = executeOnAllShards(shardSql, args);
+
+                // Each shard's cursor is positioned on its head row, so rows of different shards can be compared
+                PriorityQueue<ShardHead> heads = new PriorityQueue<>(shards.size(), (a, b) -> sortKey.compare(a.row, b.row));
+                for (int i = 0; i < shards.size(); i++) {
+                    ShardResult r = takeShardResult(results);
+                    if (r.rows.hasNext()) {
+                        ShardHead h = new ShardHead();
+                        h.shard = r;
+                        h.row = r.rows.next();
+                        heads.add(h);
+                    }
+                    else shardFinished(r);
+                }
+
+                return new Iterator<DbQueryResultRow>() {
+                    int returnedCount = 0;
+                    @CheckForNull ShardHead lastReturned = null;
+
+                    /** The row returned previously is no longer needed, move its shard's cursor forward */
+                    protected void advanceLastReturned() {
+                        if (lastReturned == null) return;
+                        if (lastReturned.shard.rows.hasNext()) {
+                            lastReturned.row = lastReturned.shard.rows.next();
+                            heads.add(lastReturned);
+                        }
+                        else shardFinished(lastReturned.shard);
+                        lastReturned = null;
+                    }
+
+                    @Override public boolean hasNext() {
+                        advanceLastReturned();
+                        if (limitOrNull != null && returnedCount >= limitOrNull) {
+                            while ( ! heads.isEmpty()) shardFinished(heads.poll().shard);
+                            return false;
+                        }
+                        return ! heads.isEmpty();
+                    }
+
+                    @Override public DbQueryResultRow next() {
+                        if ( ! hasNext()) throw new NoSuchElementException();
+                        lastReturned = heads.poll();
+                        returnedCount++;
+                        return lastReturned.row;
+                    }
+                };
+            }
+        };
+    }
+
+    /** 
+     * Rolls back the transactions of any queries whose results have not been completely read. 
+     * Shard queries still executing, for example if this is called by another thread, 
+     * roll back their own transactions when they complete.
+     */
+    protected void rollbackOpenTransactions() {
+        List<DbTransaction> toClose;
+        synchronized (openTransactions) {
+            rollbackCount++;
+            toClose = new ArrayList<>(openTransactions);
+            openTransactions.clear();
+        }
+        for (DbTransaction tx : toClose) {
+            try { tx.rollbackIfConnectionStillOpen(); }
+            catch (RuntimeException ignored) { } // ignore errors on closing
+        }
+    }
+
+    /** 
+     * Rolls back the transactions of any queries whose results have not been completely read, 
+     * and, if the threads were created by this object, waits for shard queries still executing and stops the threads 
+     */
+    @Override public void close() {
+        rollbackOpenTransactions();
+        if (ownsService) service.close();
+    }
+}
@@ -0,0 +1,124 @@
+package com.databasesandlife.util.jdbc;
+
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+import com.databasesandlife.util.Timer;
+
+/**
+ * Collects statements executed by a {@link DbTransaction} which took longer than a threshold, together with their
+ * query plan, which is fetched with <code>EXPLAIN</code> on the same connection.
+ *    <p>
+ * The most recent slow statements are kept in memory, see {@link #getRecentSlowQueries()},
+ * and each is also logged with WARN to the log category of this class, as soon as the statement has returned.
+ * The plan of a query can only be fetched once its results have been read to the end, or closed, as the connection
+ * is still reading them until then; it is then attached to the {@link SlowQuery} and logged with WARN again.
+ * A query whose results are never read to the end nor closed is recorded without a plan.
+ *    <p>
+ * A fraction of slow queries can be explained with <code>EXPLAIN ANALYZE</code>, which executes the query a second time,
+ * see {@link #setExplainAnalyzeProbability(double)}. This is only done for statements starting with a plain SELECT,
+ * and is always rolled back to a savepoint afterwards, in case the SELECT called functions with side effects.
+ *    <p>
+ * Objects of this class are thread-safe, and are intended to be shared between all transactions.
+ * Usage:
+ * <pre>
+ *   static final SlowQueryLog slowQueries = new SlowQueryLog(500, 100); // slower than 500ms, keep the most recent 100
+ *
+ *   try (DbTransaction tx = new DbTransaction(jdbc)) {
+ *      tx.setSlowQueryLog(slowQueries);
+ *      ...
+ *   }
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class SlowQueryLog {
+
+    public static class SlowQuery {
+        public final @Nonnull Instant time;
+        public final @Nonnull String sql;
+        /** SQL with the parameters substituted, see {@link DbTransaction#getSqlForLog(String, Object[])} */
+        public final @Nonnull String sqlForLog;
+        public final long durationNanos;
+        /** 
+         * Null if the plan has not been fetched (yet), or could not be fetched, 
+         * for example the database does not support EXPLAIN of this statement 
+         */
+        public volatile @CheckForNull String plan;
+        public volatile boolean analyzed;
+
+        public SlowQuery(@Nonnull String sql, @Nonnull String sqlForLog, long durationNanos, @CheckForNull String plan, boolean analyzed) {
+            this.time = Instant.now();
+            this.sql = sql;
+            this.sqlForLog = sqlForLog;
+            this.durationNanos = durationNanos;
+            this.plan = plan;
+            this.analyzed = analyzed;
+        }
+
+        @Override public String toString() {
+            return "Slow query (" + Timer.formatDurationNanos(durationNanos) + "): " + sqlForLog +
+                (plan == null ? "" : ("\n" + (analyzed ? "EXPLAIN ANALYZE" : "EXPLAIN") + ":\n" + plan));
+        }
+    }
+
+    protected final long thresholdNanos;
+    protected final int capacity;
+    protected double explainAnalyzeProbability = 0;
+    protected final ArrayDeque<SlowQuery> recentSlowQueries;
+
+    /**
+     * @param thresholdMillis statements which take at least this long are explained
+     * @param capacity how many of the most recent slow statements to keep in memory
+     */
+    public SlowQueryLog(long thresholdMillis, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        this.thresholdNanos = thresholdMillis * 1000L * 1000L;
+        this.capacity = capacity;
+        this.recentSlowQueries = new ArrayDeque<>(capacity);
+    }
+
+    /** @param probability between 0 (default, never) and 1 (always) */
+    public void setExplainAnalyzeProbability(double probability) {
+        if (probability < 0 || probability > 1) throw new IllegalArgumentException("probability must be between 0 and 1");
+        explainAnalyzeProbability = probability;
+    }
+
+    protected boolean isSlow(long durationNanos) {
+        return durationNanos >= thresholdNanos;
+    }
+
+    protected boolean shouldExplainAnalyze() {
+        return explainAnalyzeProbability > 0 && ThreadLocalRandom.current().nextDouble() < explainAnalyzeProbability;
+    }
+
+    protected synchronized void add(@Nonnull SlowQuery query) {
+        if (recentSlowQueries.size() >= capacity) recentSlowQueries.removeFirst();
+        recentSlowQueries.addLast(query);
+        Logger.getLogger(getClass()).warn(query);
+    }
+
+    protected void onPlanFetched(@Nonnull SlowQuery query, @Nonnull String plan, boolean analyzed) {
+        query.analyzed = analyzed;
+        query.plan = plan;
+        Logger.getLogger(getClass()).warn(query);
+    }
+
+    /** @return oldest first */
+    public synchronized @Nonnull List<SlowQuery> getRecentSlowQueries() {
+        return new ArrayList<>(recentSlowQueries);
+    }
+
+    public synchronized void clear() {
+        recentSlowQueries.clear();
+    }
+}
@@ -0,0 +1,223 @@
+package com.databasesandlife.util.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Function;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+import com.databasesandlife.util.jdbc.DbTransaction.CannotConnectToDatabaseException;
+import com.databasesandlife.util.jdbc.DbTransaction.DbServerProduct;
+import com.databasesandlife.util.jdbc.DbTransaction.DbTransactionFactory;
+
+/**
+ * Creates transactions against an SQLite database file, which many threads can use at the same time.
+ *    <p>
+ * SQLite allows only one writer at a time; concurrent write transactions fail with SQLITE_BUSY.
+ * Therefore:
+ * <ul>
+ *   <li>The database is put in WAL mode, so readers do not block the writer and vice versa.
+ *       Each connection uses <code>synchronous=NORMAL</code> (safe in WAL mode) and a busy timeout.
+ *   <li>Readers use {@link #newReadOnlyDbTransaction()}, and run concurrently with each other and with the writer.
+ *       Their connections are set to <code>query_only</code>, so writes made with them fail.
+ *   <li>Writes are passed to {@link #write(Function)} or {@link #submitWrite(Function)}, and are executed one after
+ *       the other by a single writer thread. All writes waiting when the writer becomes free are executed in one
+ *       transaction, each within its own savepoint, and committed together ("group commit"), so that the cost of
+ *       the commit is shared between many writes.
+ * </ul>
+ *    <p>
+ * A write which throws an exception is rolled back to its savepoint, and its exception is thrown to its caller;
+ * the other writes of the same group are still committed. This includes {@link Error}s such as {@link AssertionError}.
+ * Writes must not commit or roll back the transaction themselves.
+ * If the writer thread stops, for example because it is interrupted, writes waiting for it fail,
+ * and the next write starts a new writer thread.
+ *    <p>
+ * Usage:
+ * <pre>
+ *   try (SqliteDbTransactionFactory db = new SqliteDbTransactionFactory("jdbc:sqlite:/var/data/app.db")) {
+ *       long id = db.write(tx -&gt; tx.insertAndFetchNewId("person", cols));
+ *       try (DbTransaction tx = db.newReadOnlyDbTransaction()) { .. }
+ *   }
+ * </pre>
+ *
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class SqliteDbTransactionFactory implements DbTransactionFactory, AutoCloseable {
+
+    protected static class WriteJob<T> {
+        final Function<DbTransaction, T> work;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        @CheckForNull T value;
+        @CheckForNull Throwable exception;
+
+        WriteJob(Function<DbTransaction, T> work) { this.work = work; }
+    }
+
+    /** So that {@link DbTransaction#attempt(Runnable)} also rolls back to the savepoint if a write throws an Error */
+    protected static class ErrorInWrite extends RuntimeException {
+        ErrorInWrite(Error cause) { super(cause); }
+    }
+
+    /** Placed in the queue by {@link #close()} */
+    protected static final WriteJob<Void> endOfWrites = new WriteJob<>(tx -> null);
+
+    protected final @Nonnull String jdbcUrl;
+    protected int busyTimeoutMillis = 5000;
+    protected int maxGroupSize = 1000;
+    protected final BlockingQueue<WriteJob<?>> writeQueue = new LinkedBlockingQueue<>();
+    protected @CheckForNull Thread writerThread = null;
+    protected boolean closed = false;
+
+    public SqliteDbTransactionFactory(@Nonnull String jdbcUrl) {
+        if ( ! jdbcUrl.contains(":sqlite")) throw new IllegalArgumentException("Not an SQLite URL: " + jdbcUrl);
+        this.jdbcUrl = jdbcUrl;
+        try (Connection c = DriverManager.getConnection(jdbcUrl); Statement s = c.createStatement()) {
+            s.execute("PRAGMA journal_mode=WAL");  // persistent, stored in the database file
+        }
+        catch (SQLException e) { throw new CannotConnectToDatabaseException("Cannot open '" + jdbcUrl + "'", e); }
+    }
+
+    /** How long a connection waits for a lock held by another connection, before failing with SQLITE_BUSY; default 5000 */
+    public void setBusyTimeoutMillis(int millis) { busyTimeoutMillis = millis; }
+
+    /** The most writes which are committed in one transaction, default 1000 */
+    public void setMaxGroupSize(int size) {
+        if (size < 1) throw new IllegalArgumentException("size must be at least 1");
+        maxGroupSize = size;
+    }
+
+    /** Pragmas are set before the transaction is started, as some cannot be changed within a transaction */
+    protected @Nonnull DbTransaction newConfiguredDbTransaction(boolean readOnly) {
+        try {
+            Connection c = DriverManager.getConnection(jdbcUrl);
+            try (Statement s = c.createStatement()) {
+                s.execute("PRAGMA busy_timeout=" + busyTimeoutMillis);
+                s.execute("PRAGMA synchronous=NORMAL");
+                if (readOnly) s.execute("PRAGMA query_only=1");
+            }
+            c.setAutoCommit(false);
+            return new DbTransaction(DbServerProduct.sqlite, c);
+        }
+        catch (SQLException e) { throw new CannotConnectToDatabaseException("Cannot open '" + jdbcUrl + "'", e); }
+    }
+
+    /** Can be used concurrently with other readers and with the writer thread; writes made with it fail */
+    public @Nonnull DbTransaction newReadOnlyDbTransaction() {
+        return newConfiguredDbTransaction(true);
+    }
+
+    /**
+     * A read-write transaction which does not go via the writer thread.
+     * It may wait up to the busy timeout for the writer thread, so prefer {@link #write(Function)}.
+     */
+    @Override public @Nonnull DbTransaction newDbTransaction() {
+        return newConfiguredDbTransaction(false);
+    }
+
+    protected void executeGroup(@Nonnull List<WriteJob<?>> group) {
+        try (DbTransaction tx = newConfiguredDbTransaction(false)) {
+            for (WriteJob<?> job : group) executeJob(tx, job);
+            tx.commit();
+        }
+        catch (Throwable e) {
+            Logger.getLogger(getClass()).error("Group of " + group.size() + " writes failed", e);
+            for (WriteJob<?> job : group) job.result.completeExceptionally(e);
+            return;
+        }
+        for (WriteJob<?> job : group) completeJob(job);
+    }
+
+    protected <T> void executeJob(@Nonnull DbTransaction tx, @Nonnull WriteJob<T> job) {
+        try {
+            tx.attempt(() -> {
+                try { job.value = job.work.apply(tx); }
+                catch (Error e) { throw new ErrorInWrite(e); }
+            });
+        }
+        catch (ErrorInWrite e) { job.exception = e.getCause(); }
+        catch (Throwable e) { job.exception = e; }
+    }
+
+    protected <T> void completeJob(@Nonnull WriteJob<T> job) {
+        if (job.exception != null) job.result.completeExceptionally(job.exception);
+        else job.result.complete(job.value);
+    }
+
+    protected void runWriter() {
+        try {
+            while (true) {
+                List<WriteJob<?>> group = new ArrayList<>();
+                group.add(writeQueue.take());
+                writeQueue.drainTo(group, maxGroupSize - 1);
+
+                boolean end = group.remove(endOfWrites);
+                if ( ! group.isEmpty()) executeGroup(group);
+                if (end) return;
+            }
+        }
+        catch (InterruptedException e) { Logger.getLogger(getClass()).warn("Writer thread interrupted", e); }
+        catch (Throwable e) { Logger.getLogger(getClass()).error("Writer thread failed", e); }
+        finally { onWriterStopped(); }
+    }
+
+    /** 
+     * Fails the writes still waiting, as no thread will execute them. Synchronized with {@link #submitWrite(Function)},
+     * so that no write is added meanwhile, and the next write starts a new writer thread.
+     */
+    protected synchronized void onWriterStopped() {
+        writerThread = null;
+        List<WriteJob<?>> remaining = new ArrayList<>();
+        writeQueue.drainTo(remaining);
+        for (WriteJob<?> job : remaining)
+            if (job != endOfWrites) job.result.completeExceptionally(new IllegalStateException("Writer thread has stopped"));
+    }
+
+    /** @return completes once the transaction containing the write has committed */
+    public synchronized @Nonnull <T> CompletableFuture<T> submitWrite(@Nonnull Function<DbTransaction, T> work) {
+        if (closed) throw new IllegalStateException("Closed");
+        if (writerThread == null) {
+            writerThread = new Thread(this::runWriter, getClass().getSimpleName() + "-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+        WriteJob<T> job = new WriteJob<>(work);
+        writeQueue.add(job);
+        return job.result;
+    }
+
+    /** Waits until the transaction containing the write has committed. @return the result of "work" */
+    public <T> T write(@Nonnull Function<DbTransaction, T> work) {
+        try { return submitWrite(work).join(); }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    /** Executes the writes already submitted, and stops the writer thread */
+    @Override public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            thread = writerThread;
+        }
+        if (thread == null) return;
+        writeQueue.add(endOfWrites);
+        try { thread.join(); }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+    }
+}
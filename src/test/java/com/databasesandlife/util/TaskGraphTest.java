@@ -0,0 +1,65 @@
+package com.databasesandlife.util;
+
+import com.databasesandlife.util.TaskGraph.Node;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class TaskGraphTest extends TestCase {
+
+    public void testAdd() {
+        for (boolean workStealing : new boolean[] { false, true }) {
+            int taskCount = 20_000;
+            AtomicInteger clock = new AtomicInteger();
+            AtomicIntegerArray finishedAt = new AtomicIntegerArray(taskCount);
+
+            ThreadPool pool = new ThreadPool();
+            pool.setThreadCount(8);
+            pool.setWorkStealing(workStealing);
+            TaskGraph graph = new TaskGraph(pool);
+
+            // Each task depends on the three tasks before it
+            List<Node> nodes = new ArrayList<>();
+            for (int i = 0; i < taskCount; i++) {
+                int idx = i;
+                List<Node> dependencies = nodes.subList(Math.max(0, i - 3), i);
+                Runnable task = () -> {
+                    for (int d = Math.max(0, idx - 3); d < idx; d++)
+                        if (finishedAt.get(d) == 0) throw new RuntimeException("Task " + idx + " ran before " + d);
+                    finishedAt.set(idx, clock.incrementAndGet());
+                };
+                nodes.add(graph.add(task, dependencies));
+            }
+
+            pool.execute();
+
+            assertEquals(taskCount, clock.get());
+            assertTrue(nodes.get(taskCount - 1).isDone());
+        }
+    }
+
+    public void testAdd_fromRunningTask() {
+        StringBuffer output = new StringBuffer();
+
+        ThreadPool pool = new ThreadPool();
+        pool.setWorkStealing(true);
+        TaskGraph graph = new TaskGraph(pool);
+
+        Node a = graph.add(() -> output.append("a"));
+        graph.add(() -> {
+            Node b = graph.add(() -> output.append("b"), a);   // a is already done
+            graph.add(() -> output.append("c"), b);
+        }, a);
+
+        pool.execute();
+
+        assertEquals("abc", output.toString());
+    }
+}
@@ -0,0 +1,71 @@
+package com.databasesandlife.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ThreadPoolServiceTest extends TestCase {
+
+    protected void sleep(double seconds) {
+        try { Thread.sleep((long) (1000 * seconds)); }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+    }
+
+    public void testExecute() throws Exception {
+        try (ThreadPoolService service = new ThreadPoolService("test", 4)) {
+            // Many jobs executed at the same time, from different threads
+            List<Thread> callers = new ArrayList<>();
+            List<String> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                Thread caller = new Thread(() -> {
+                    StringBuffer output = new StringBuffer();
+                    ThreadPool job = new ThreadPool(service);
+                    Runnable a = job.addTask(() -> { sleep(0.01); output.append("a"); });
+                    Runnable b = job.addTaskWithDependencies(singletonList(a), () -> output.append("b"));
+                    job.addTaskWithDependencies(singletonList(b), () -> job.addTask(() -> output.append("c")));
+                    job.execute();
+                    synchronized (results) { results.add(output.toString()); }
+                });
+                callers.add(caller);
+                caller.start();
+            }
+            for (Thread caller : callers) caller.join();
+            assertEquals(10, results.size());
+            for (String r : results) assertEquals("abc", r);
+
+            // Failure of one job
+            ThreadPool failing = new ThreadPool(service);
+            failing.addTask(() -> { throw new RuntimeException("foo"); });
+            try { failing.execute(); fail(); }
+            catch (RuntimeException e) { assertEquals("foo", e.getCause().getMessage()); }
+
+            // Thread count limits the threads used by one job
+            AtomicInteger running = new AtomicInteger(), maxRunning = new AtomicInteger();
+            ThreadPool limited = new ThreadPool(service);
+            limited.setThreadCount(2);
+            for (int i = 0; i < 10; i++) limited.addTask(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                sleep(0.01);
+                running.decrementAndGet();
+            });
+            limited.execute();
+            assertEquals(2, maxRunning.get());
+        }
+    }
+
+    public void testClose() {
+        ThreadPoolService service = new ThreadPoolService("test", 2);
+        service.close();
+        for (Thread t : service.threads) assertFalse(t.isAlive());
+        try { new ThreadPool(service).execute(); fail(); }
+        catch (IllegalStateException e) { }
+    }
+}
@@ -3,12 +3,23 @@ package com.databasesandlife.util;
 import com.databasesandlife.util.ThreadPool.SynchronizationPoint;
 import junit.framework.TestCase;
 
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 
 /**
  * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
@@ -75,6 +86,40 @@ public class ThreadPoolTest extends TestCase {
         assertEquals("33333333", output.toString());
     }
 
+    public void testWorkStealing() {
+        for (int repeat = 0; repeat < 20; repeat++) {
+            AtomicInteger leafCount = new AtomicInteger();
+            StringBuffer output = new StringBuffer();
+
+            ThreadPool threads = new ThreadPool();
+            threads.setThreadCount(8);
+            threads.setWorkStealing(true);
+
+            // Binary tree of tasks, each added by its parent from within the pool, so to the parent's local deque
+            class Task implements Runnable {
+                int depth;
+                public Task(int d) { depth = d; }
+
+                @Override public void run() {
+                    if (depth == 12) leafCount.incrementAndGet();
+                    else threads.addTask(new Task(depth + 1), new Task(depth + 1));
+                }
+            }
+
+            threads.addTask(() -> {
+                threads.addTask(new Task(0));
+
+                // Dependency on a task in a local deque
+                Runnable a = threads.addTask(() -> { sleep(0.01); output.append("a"); });
+                threads.addTaskWithDependencies(singletonList(a), () -> output.append("b"));
+            });
+            threads.execute();
+
+            assertEquals(1 << 12, leafCount.get());
+            assertEquals("ab", output.toString());
+        }
+    }
+
     public void testAddTaskWithDependencies() {
         ThreadPool runTests = new ThreadPool();
         runTests.setThreadCount(10);
@@ -158,6 +203,282 @@ public class ThreadPoolTest extends TestCase {
         assertEquals("ab", result.toString());
     }
 
+    /**
+     * The thread completing a task can only execute one of the tasks depending on it;
+     * the others must be executed by idle threads, which must be woken, as they do not poll for ready tasks.
+     * Each dependent task waits for the other, so both must execute at the same time, on different threads.
+     */
+    public void testDependentTasksWakeIdleThreads() {
+        CyclicBarrier bothDependentsExecuting = new CyclicBarrier(2);
+        Supplier<Runnable> dependent = () -> () -> {
+            try { bothDependentsExecuting.await(10, TimeUnit.SECONDS); }
+            catch (InterruptedException | BrokenBarrierException | TimeoutException e) { throw new RuntimeException(e); }
+        };
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(2);
+        Runnable first = pool.addTask(() -> sleep(0.05));  // the other thread is meanwhile idle
+        pool.addTaskWithDependencies(singletonList(first), dependent.get(), dependent.get());
+        pool.execute();
+    }
+
+    /**
+     * Benchmark, not executed by the tests as it measures wall-clock time:
+     * layers of short tasks (waiting 1ms, e.g. for I/O), each layer depending on all tasks of the previous layer.
+     * The thread completing the last task of a layer can only execute one task of the next layer,
+     * the other tasks depend on idle threads being woken, so this measures the latency between a task
+     * becoming ready and it starting to execute.
+     * Threads which polled for ready tasks every 10ms took about 4ms per layer.
+     */
+    public static void main(String[] args) {
+        int threadCount = 4, layerCount = 200;
+        AtomicInteger executed = new AtomicInteger();
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(threadCount);
+        List<Runnable> previousLayer = new ArrayList<>();
+        for (int layer = 0; layer < layerCount; layer++) {
+            List<Runnable> thisLayer = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) thisLayer.add(() -> {
+                try { Thread.sleep(1); }
+                catch (InterruptedException e) { throw new RuntimeException(e); }
+                executed.incrementAndGet();
+            });
+            pool.addTaskWithDependencies(previousLayer, thisLayer.toArray(new Runnable[0]));
+            previousLayer = thisLayer;
+        }
+
+        long start = System.nanoTime();
+        pool.execute();
+        System.out.println(layerCount + " layers, each sleeping 1ms, took " + Timer.formatDurationNanos(System.nanoTime() - start)
+            + " to execute " + executed.get() + " tasks");
+    }
+
+    public void testPrioritization() {
+        StringBuffer output = new StringBuffer();
+        class Task implements ThreadPool.PrioritizedTask {
+            String val; double priority;
+            Task(String v, double p) { val = v; priority = p; }
+            @Override public double getPriority() { return priority; }
+            @Override public void run() { output.append(val); }
+        }
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(1);
+        pool.addTask(new Task("a", 1), new Task("c", 3), new Task("b", 2));
+        pool.addTask(() -> output.append("z"));
+        pool.execute();
+
+        assertEquals("cbaz", output.toString());
+    }
+
+    public void testCriticalPathPrioritization() {
+        StringBuffer output = new StringBuffer();
+        class Task implements Runnable {
+            String val;
+            Task(String v) { val = v; }
+            @Override public void run() { output.append(val); }
+        }
+
+        // Wide tasks are added first, but the chain should be started first
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(1);
+        pool.setCriticalPathPrioritization(true);
+        pool.addTask(new Task("w"), new Task("w"), new Task("w"));
+        Runnable c1 = pool.addTask(new Task("1"));
+        Runnable c2 = pool.addTaskWithDependencies(singletonList(c1), new Task("2"));
+        pool.addTaskWithDependencies(singletonList(c2), new Task("3"));
+        pool.execute();
+
+        assertEquals("12www3", output.toString());  // "3" has the same critical path as "w", which became ready earlier
+    }
+
+    public void testCriticalPathPrioritization_tasksAddedWhileExecuting() {
+        StringBuffer output = new StringBuffer();
+        class Task implements Runnable {
+            String val;
+            Task(String v) { val = v; }
+            @Override public void run() { output.append(val); }
+        }
+
+        // Adding "2" and "3" makes the chain starting with "1", which is already ready, longer
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(1);
+        pool.setCriticalPathPrioritization(true);
+        pool.addTask(() -> {
+            output.append("s");
+            pool.addTask(new Task("w"), new Task("w"), new Task("w"));
+            Runnable c1 = pool.addTask(new Task("1"));
+            Runnable c2 = pool.addTaskWithDependencies(singletonList(c1), new Task("2"));
+            pool.addTaskWithDependencies(singletonList(c2), new Task("3"));
+        });
+        pool.execute();
+
+        assertEquals("s12www3", output.toString());
+    }
+
+    public void testResourceLimit() {
+        AtomicInteger dbConcurrent = new AtomicInteger(), dbMaxConcurrent = new AtomicInteger(), cpuDone = new AtomicInteger();
+        StringBuffer output = new StringBuffer();
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(4);
+        pool.setResourceLimit("db", 2);
+        List<Runnable> dbTasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) dbTasks.add(pool.addTask(ThreadPool.withResourceClass("db", () -> {
+            dbMaxConcurrent.accumulateAndGet(dbConcurrent.incrementAndGet(), Math::max);
+            try { Thread.sleep(10); } catch (InterruptedException e) { throw new RuntimeException(e); }
+            dbConcurrent.decrementAndGet();
+        })));
+        for (int i = 0; i < 20; i++) pool.addTask(() -> cpuDone.incrementAndGet());
+        pool.addTaskWithDependencies(dbTasks, () -> output.append(dbConcurrent.get() + "," + cpuDone.get()));
+        pool.execute();
+
+        assertEquals(2, dbMaxConcurrent.get());
+        assertEquals("0,20", output.toString());
+    }
+
+    public void testAddTaskSource() {
+        AtomicInteger created = new AtomicInteger(), done = new AtomicInteger(), maxOutstanding = new AtomicInteger();
+        Iterator<Runnable> source = new Iterator<Runnable>() {
+            @Override public boolean hasNext() { return created.get() < 10_000; }
+            @Override public Runnable next() {
+                maxOutstanding.accumulateAndGet(created.incrementAndGet() - done.get(), Math::max);
+                return () -> done.incrementAndGet();
+            }
+        };
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(4);
+        pool.setTaskSourceBufferSize(10);
+        pool.addTaskSource(source);
+        pool.execute();
+
+        assertEquals(10_000, done.get());
+        assertTrue("" + maxOutstanding.get(), maxOutstanding.get() <= 10);
+    }
+
+    public void testAddTaskSource_resourceLimit() {
+        AtomicInteger created = new AtomicInteger(), done = new AtomicInteger(), maxOutstanding = new AtomicInteger();
+        Iterator<Runnable> source = new Iterator<Runnable>() {
+            @Override public boolean hasNext() { return created.get() < 2000; }
+            @Override public Runnable next() {
+                maxOutstanding.accumulateAndGet(created.incrementAndGet() - done.get(), Math::max);
+                return ThreadPool.withResourceClass("db", () -> done.incrementAndGet());
+            }
+        };
+
+        // Tasks waiting for the resource are outstanding, so the source is not drained into memory
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(4);
+        pool.setResourceLimit("db", 1);
+        pool.setTaskSourceBufferSize(10);
+        pool.addTaskSource(source);
+        pool.execute();
+
+        assertEquals(2000, done.get());
+        assertTrue("" + maxOutstanding.get(), maxOutstanding.get() <= 10);
+    }
+
+    public void testMap() {
+        List<Integer> inputs = new LinkedList<>(IntStream.range(0, 1000).boxed().collect(toList()));
+        List<Integer> result = ThreadPool.map(inputs, i -> i * 2);
+        assertEquals(1000, result.size());
+        for (int i = 0; i < 1000; i++) assertEquals(i * 2, (int) result.get(i));
+    }
+
+    public void testMapReduce() {
+        List<Integer> inputs = IntStream.range(0, 1000).boxed().collect(toList());
+        long sum = ThreadPool.mapReduce(inputs, () -> new long[1], (acc, i) -> acc[0] += i, (a, b) -> { a[0] += b[0]; return a; })[0];
+        assertEquals(999 * 1000 / 2, sum);
+        assertEquals(0, ThreadPool.mapReduce(new ArrayList<Integer>(), () -> new long[1], (acc, i) -> acc[0] += i, (a, b) -> a)[0]);
+    }
+
+    public void testAddCallable() {
+        ThreadPool pool = new ThreadPool();
+        ThreadPool.CallableTask<Integer> a = pool.addCallable(() -> 3);
+        ThreadPool.CallableTask<Integer> b = pool.addCallable(() -> 4);
+        ThreadPool.CallableTask<Integer> sum = pool.addCallableWithDependencies(asList(a, b), () -> a.get() + b.get());
+        assertFalse(sum.isDone());
+        pool.execute();
+        assertEquals(7, (int) sum.get());
+
+        ThreadPool failing = new ThreadPool();
+        failing.addCallable(() -> { throw new Exception("checked"); });
+        try { failing.execute(); fail(); }
+        catch (RuntimeException e) { assertEquals("checked", e.getCause().getCause().getMessage()); }
+    }
+
+    public void testInterruptOnFailure() {
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(2);
+        pool.setInterruptOnFailure(true);
+        Runnable slow = () -> {
+            try { Thread.sleep(60_000); }
+            catch (InterruptedException e) { throw new RuntimeException("interrupted", e); }
+        };
+        pool.addTask(slow);
+        pool.addTaskOffPool(slow);
+        pool.addTask(() -> {
+            try { Thread.sleep(50); } catch (InterruptedException e) { throw new RuntimeException(e); }
+            throw new RuntimeException("original");
+        });
+
+        long start = System.currentTimeMillis();
+        try { pool.execute(); fail(); }
+        catch (RuntimeException e) { assertEquals("original", e.getCause().getMessage()); }
+        assertTrue(System.currentTimeMillis() - start < 10_000);
+    }
+
+    public void testCancel() {
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(2);
+        AtomicInteger started = new AtomicInteger();
+        pool.addTask(() -> { while ( ! pool.isCancelled()) Thread.yield(); });
+        pool.addTask(() -> {
+            pool.cancel();
+            pool.addTask(() -> started.incrementAndGet());
+        });
+
+        try { pool.execute(); fail(); }
+        catch (RuntimeException e) { assertTrue(e.getCause() instanceof CancellationException); }
+        assertEquals(0, started.get());
+    }
+
+    public void testMetrics() throws Exception {
+        class Task implements Runnable {
+            String name;
+            Task(String n) { name = n; }
+            @Override public void run() { try { Thread.sleep(20); } catch (InterruptedException e) { throw new RuntimeException(e); } }
+            @Override public String toString() { return name; }
+        }
+
+        ThreadPool pool = new ThreadPool();
+        pool.setThreadCount(2);
+        pool.setMetricsEnabled(true);
+        Runnable a = pool.addTask(new Task("a"));
+        Runnable b = pool.addTaskWithDependencies(singletonList(a), new Task("b"));
+        pool.addTaskOffPool(new Task("\"off\""));
+        pool.addTaskWithDependencies(singletonList(b), new Task("c"));
+        pool.execute();
+
+        ThreadPoolMetrics metrics = pool.getMetrics();
+        assertEquals(4, metrics.getTasks().size());
+        for (ThreadPoolMetrics.TaskMetrics t : metrics.getTasks()) {
+            assertTrue(t.getRunningNanos() >= 15_000_000);
+            if (t.getName().equals("b")) assertTrue(t.getBlockedNanos() >= 15_000_000);
+            if (t.getName().equals("b")) assertSame(a, t.getDependencies().get(0).getTask());
+        }
+        assertEquals("[a, b, c]", metrics.getCriticalPath().stream().map(t -> t.getName()).collect(toList()).toString());
+        assertTrue(metrics.getUtilization() > 0 && metrics.getUtilization() <= 1);
+        assertEquals(4, metrics.getUtilizationOverTime(4).length);
+
+        StringWriter trace = new StringWriter();
+        metrics.writeChromeTrace(trace);
+        assertTrue(trace.toString().startsWith("{\"traceEvents\":["));
+        assertTrue(trace.toString().contains("\"name\":\"\\\"off\\\"\",\"cat\":\"offPool\""));
+    }
+
     public void testAddTaskOffPool() {
         StringBuffer output = new StringBuffer();
 
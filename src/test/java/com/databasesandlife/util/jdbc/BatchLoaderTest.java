@@ -0,0 +1,45 @@
+package com.databasesandlife.util.jdbc;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static java.util.Arrays.asList;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class BatchLoaderTest extends TestCase {
+
+    public void testLoad() {
+        List<List<Integer>> batches = new ArrayList<>();
+        BatchLoader<Integer, String> loader = new BatchLoader<>(keys -> {
+            batches.add(new ArrayList<>(keys));
+            Map<Integer, String> result = new HashMap<>();
+            for (Integer k : keys) if (k != 3) result.put(k, "v" + k);
+            return result;
+        });
+        loader.setMaxBatchSize(2);
+
+        Supplier<String> one = loader.load(1);
+        Supplier<String> two = loader.load(2);
+        Supplier<String> three = loader.load(3);
+        assertEquals(0, batches.size());
+
+        assertEquals("v2", two.get());
+        assertEquals(asList(asList(1, 2), asList(3)), batches);
+        assertEquals("v1", one.get());
+        assertNull(three.get());
+
+        assertEquals("v1", loader.get(1));
+        assertEquals(2, batches.size());
+
+        assertEquals(asList(1, 4), new ArrayList<>(loader.getAll(asList(1, 3, 4)).keySet()));
+        assertEquals(asList(4), batches.get(2));
+    }
+}
@@ -0,0 +1,90 @@
+package com.databasesandlife.util.jdbc;
+
+import com.databasesandlife.util.jdbc.testutil.DatabaseConnection;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class DbTaskQueueTest extends TestCase {
+
+    protected void createTables() {
+        try (DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            tx.execute("DROP TABLE IF EXISTS task_queue");
+            tx.execute("DROP TABLE IF EXISTS task_queue_dependency");
+            tx.execute("CREATE TABLE task_queue(id BIGSERIAL PRIMARY KEY, queue VARCHAR(100) NOT NULL, " +
+                "task_type VARCHAR(100) NOT NULL, payload TEXT NOT NULL, state VARCHAR(10) NOT NULL, " +
+                "claimed_by VARCHAR(100), claimed_at TIMESTAMP, error TEXT)");
+            tx.execute("CREATE TABLE task_queue_dependency(task_id BIGINT NOT NULL, depends_on_id BIGINT NOT NULL, " +
+                "PRIMARY KEY (task_id, depends_on_id))");
+            tx.commit();
+        }
+    }
+
+    public void testProcessAvailableTasks() {
+        createTables();
+
+        List<String> executed = Collections.synchronizedList(new ArrayList<>());
+        DbTaskQueue queue = new DbTaskQueue(() -> new DbTransaction(DatabaseConnection.postgresql), "test", "node");
+        queue.registerHandler("ok", (tx, payload) -> {
+            executed.add(payload);
+            if (payload.equals("a")) queue.addTask(tx, "ok", "a-child");
+        });
+        queue.registerHandler("fail", (tx, payload) -> { throw new Exception("fails"); });
+
+        long a, failed;
+        try (DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            a = queue.addTask(tx, "ok", "a");
+            failed = queue.addTask(tx, "fail", "x");
+            queue.addTaskWithDependencies(tx, asList(a), "ok", "after-a");
+            queue.addTaskWithDependencies(tx, asList(failed), "ok", "after-failed");
+            tx.commit();
+        }
+
+        assertEquals(4, queue.processAvailableTasks());
+        assertEquals("a", executed.get(0));
+        assertEquals(3, executed.size());
+        assertTrue(executed.containsAll(asList("a-child", "after-a")));
+
+        try (DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            assertEquals("failed", tx.query("SELECT state FROM task_queue WHERE id=?", failed).iterator().next().getString("state"));
+            assertEquals("ready", tx.query("SELECT state FROM task_queue WHERE payload='after-failed'").iterator().next().getString("state"));
+        }
+        assertEquals(0, queue.processAvailableTasks());
+    }
+
+    public void testProcessAvailableTasks_claimWhenThreadFree() throws Exception {
+        createTables();
+
+        CountDownLatch quickTasksDone = new CountDownLatch(5);
+        DbTaskQueue queue = new DbTaskQueue(() -> new DbTransaction(DatabaseConnection.postgresql), "test", "node");
+        queue.setThreadCount(2);
+        queue.registerHandler("slow", (tx, payload) -> assertTrue(quickTasksDone.await(10, TimeUnit.SECONDS)));
+        queue.registerHandler("quick", (tx, payload) -> quickTasksDone.countDown());
+        queue.registerHandler("error", (tx, payload) -> { throw new AssertionError("fails"); });
+
+        long error;
+        try (DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            queue.addTask(tx, "slow", "");
+            for (int i = 0; i < 5; i++) queue.addTask(tx, "quick", "");
+            error = queue.addTask(tx, "error", "");
+            tx.commit();
+        }
+
+        // The quick tasks are claimed while the slow task waits for them
+        assertEquals(7, queue.processAvailableTasks());
+        try (DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            assertEquals(6, (int) tx.query("SELECT COUNT(*) AS c FROM task_queue WHERE state='done'").iterator().next().getInt("c"));
+            assertEquals("failed", tx.query("SELECT state FROM task_queue WHERE id=?", error).iterator().next().getString("state"));
+        }
+    }
+}
@@ -6,6 +6,14 @@ import com.databasesandlife.util.jdbc.DbTransaction.DbServerProduct;
 import com.databasesandlife.util.jdbc.testutil.DatabaseConnection;
 import junit.framework.TestCase;
 
+import java.math.BigDecimal;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.*;
 
 /**
@@ -61,6 +69,28 @@ public class DbTransactionTest extends TestCase {
         }
     }
     
+    public void testResultSetClosed() throws SQLException {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                DbTransaction.DbQueryResultRowIterator i = (DbTransaction.DbQueryResultRowIterator) tx.query("SELECT 1 AS x").iterator();
+                assertFalse(i.rs.isClosed());
+                i.next();
+                assertFalse(i.hasNext());
+                assertTrue(i.rs.isClosed());
+                
+                i = (DbTransaction.DbQueryResultRowIterator) tx.query("SELECT 2 AS x").iterator();
+                i.close();
+                assertTrue(i.rs.isClosed());
+                assertFalse(i.hasNext());
+                
+                try (java.util.stream.Stream<DbQueryResultRow> stream = tx.query("SELECT 3 AS x").stream()) {
+                    assertEquals(3, (int) stream.findFirst().get().getInt("x"));
+                }
+            }
+            finally { tx.rollback(); }
+        }
+    }
+    
     enum Choice { a,b };
     public void testEnumArray() {
         for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
@@ -159,6 +189,303 @@ public class DbTransactionTest extends TestCase {
         }
     }
 
+    public static class ToListRow {
+        public String name;
+        protected int val;
+        public Choice choice;
+        public BigDecimal amount;
+        public LocalDate day;
+        protected LocalDateTime moment;
+        public void setVal(int v) { val = v; }
+        public void setMoment(LocalDateTime m) { moment = m; }
+    }
+
+    public static class ToListUnsupportedField { public StringBuilder name; }
+    public static class ToListUnsupportedSetter { public void setName(StringBuilder n) { } }
+
+    public void testToList() {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                tx.execute("DROP TABLE IF EXISTS to_list");
+                tx.execute("CREATE TABLE to_list(name VARCHAR(10), val INT, choice VARCHAR(10), " +
+                    "amount DECIMAL(10,2), day DATE, moment TIMESTAMP NULL)");
+                tx.execute("INSERT INTO to_list VALUES ('foo', 123, 'a', 12.34, '2020-01-02', '2020-01-02 03:04:05'), " +
+                    "('bar', NULL, NULL, NULL, NULL, NULL)");
+
+                List<ToListRow> rows = tx.query("SELECT * FROM to_list ORDER BY name DESC").toList(ToListRow.class);
+                assertEquals(2, rows.size());
+                assertEquals("foo", rows.get(0).name);
+                assertEquals(123, rows.get(0).val);
+                assertEquals(Choice.a, rows.get(0).choice);
+                assertEquals(new BigDecimal("12.34"), rows.get(0).amount);
+                assertEquals(LocalDate.of(2020, 1, 2), rows.get(0).day);
+                assertEquals(LocalDateTime.of(2020, 1, 2, 3, 4, 5), rows.get(0).moment);
+                assertEquals("bar", rows.get(1).name);
+                assertEquals(0, rows.get(1).val);
+                assertNull(rows.get(1).choice);
+                assertNull(rows.get(1).amount);
+                assertNull(rows.get(1).moment);
+
+                for (Class<?> cl : Arrays.asList(ToListUnsupportedField.class, ToListUnsupportedSetter.class)) {
+                    try { tx.query("SELECT name FROM to_list").toList(cl); fail(); }
+                    catch (RuntimeException e) { assertTrue(e.getMessage().contains("StringBuilder")); }
+                }
+
+                List<String> names = tx.query("SELECT name FROM to_list ORDER BY name").map(r -> r.getString("name"));
+                assertEquals(Arrays.asList("bar", "foo"), names);
+            }
+            finally { tx.rollback(); }
+        }
+    }
+
+    public void testSlowQueryLog() {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                SlowQueryLog log = new SlowQueryLog(0, 2);
+                tx.setSlowQueryLog(log);
+                
+                // Recorded as soon as the query returns, even if its rows are not read to the end
+                Iterator<DbQueryResultRow> rows = tx.query("SELECT 1 AS x").iterator();
+                assertEquals(1, (int) rows.next().getInt("x"));
+                assertEquals(1, log.getRecentSlowQueries().size());
+                assertEquals("SELECT 1 AS x", log.getRecentSlowQueries().get(0).sql);
+                assertNull(log.getRecentSlowQueries().get(0).plan);
+                assertFalse(rows.hasNext());  // explained once the rows have been read
+                assertNotNull(log.getRecentSlowQueries().get(0).plan);
+                
+                tx.query("SELECT 3 AS x").iterator().next();  // never read to the end
+                assertEquals("SELECT 3 AS x", log.getRecentSlowQueries().get(1).sql);
+                
+                tx.execute("DROP TABLE IF EXISTS slow_query_log");   // not explainable, still logged, transaction still usable
+                tx.query("SELECT ? AS x", 2).iterator().next();
+                assertEquals(2, log.getRecentSlowQueries().size());
+                assertNull(log.getRecentSlowQueries().get(0).plan);
+                assertEquals("SELECT '2' AS x", log.getRecentSlowQueries().get(1).sqlForLog);
+            }
+            finally { tx.rollback(); }
+        }
+    }
+
+    public void testSlowQueryLog_explainAnalyzeHasNoEffect() {
+        try (DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            tx.execute("DROP TABLE IF EXISTS slow_query_log");
+            tx.execute("CREATE TABLE slow_query_log(x INT)");
+            SlowQueryLog log = new SlowQueryLog(0, 10);
+            log.setExplainAnalyzeProbability(1);
+            tx.setSlowQueryLog(log);
+
+            // A write sent via query() is not executed again by EXPLAIN ANALYZE
+            tx.query("WITH i AS (INSERT INTO slow_query_log VALUES (1) RETURNING x) SELECT x FROM i").stream().count();
+            assertFalse(log.getRecentSlowQueries().get(0).analyzed);
+            tx.query("INSERT INTO slow_query_log VALUES (2) RETURNING x").stream().count();
+            assertFalse(log.getRecentSlowQueries().get(1).analyzed);
+
+            tx.query("SELECT x FROM slow_query_log").stream().count();
+            assertTrue(log.getRecentSlowQueries().get(2).analyzed);
+            assertEquals(2, tx.query("SELECT x FROM slow_query_log").stream().count());
+        }
+    }
+
+    public void testGetSqlShape() {
+        assertEquals("SELECT * FROM x WHERE id=?", DbTransaction.getSqlShape("SELECT * FROM x WHERE id=?"));
+        assertEquals("SELECT * FROM x WHERE id=? AND n=?", DbTransaction.getSqlShape("SELECT *  FROM x\n WHERE id=12 AND n='it''s'"));
+        assertEquals("SELECT * FROM t2 WHERE id IN (?)", DbTransaction.getSqlShape("SELECT * FROM t2 WHERE id IN (?, ?,?)"));
+        assertEquals("SELECT * FROM t2 WHERE id IN (?)", DbTransaction.getSqlShape("SELECT * FROM t2 WHERE id in (1, -2.5)"));
+    }
+
+    public void testQueryMemoization() {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                tx.execute("DROP TABLE IF EXISTS memoized");
+                tx.execute("CREATE TABLE memoized(x INT)");
+                tx.execute("INSERT INTO memoized VALUES (1)");
+                tx.setQueryMemoization(true);
+                
+                assertEquals(1, (int) tx.query("SELECT x AS y FROM memoized").iterator().next().getInt("y"));
+                tx.getConnection().prepareStatement("UPDATE memoized SET x=2").executeUpdate(); // bypasses DbTransaction
+                assertEquals(1, (int) tx.query("SELECT x AS y FROM memoized").iterator().next().getInt("y"));
+                
+                tx.execute("UPDATE memoized SET x=3");
+                assertEquals(3, (int) tx.query("SELECT x AS y FROM memoized").iterator().next().getInt("y"));
+                
+                tx.getConnection().prepareStatement("UPDATE memoized SET x=4").executeUpdate();
+                assertEquals(4, (int) tx.queryWithoutMemoization("SELECT x AS y FROM memoized").iterator().next().getInt("y"));
+                
+                if (tx.product == DbServerProduct.postgres) {  // a write via query() forgets memoized rows, and isn't memoized
+                    String update = "WITH u AS (UPDATE memoized SET x = x + 1 RETURNING x) SELECT x FROM u";
+                    assertEquals(5, (int) tx.query(update).iterator().next().getInt("x"));
+                    assertEquals(6, (int) tx.query(update).iterator().next().getInt("x"));
+                    assertEquals(6, (int) tx.query("SELECT x AS y FROM memoized").iterator().next().getInt("y"));
+                }
+            }
+            catch (SQLException e) { throw new RuntimeException(e); }
+            finally { tx.rollback(); }
+        }
+    }
+
+    public void testUpdateBatch() {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                tx.execute("DROP TABLE IF EXISTS update_batch");
+                tx.execute("CREATE TABLE update_batch(k1 INT, k2 VARCHAR(10), val INT, str VARCHAR(10))");
+                for (int i = 0; i < 5; i++) tx.execute("INSERT INTO update_batch VALUES (?, 'x', 0, 'old')", i);
+                
+                List<Map<String, Object>> rows = new ArrayList<>();
+                for (int i = 1; i < 5; i++) {
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("k1", i);
+                    row.put("k2", "x");
+                    row.put("val", i * 10);
+                    row.put("str", "new" + i);
+                    rows.add(row);
+                }
+                tx.updateBatch("update_batch", Arrays.asList("k1", "k2"), rows, 3);
+                
+                for (DbQueryResultRow r : tx.query("SELECT * FROM update_batch")) {
+                    int k = r.getInt("k1");
+                    assertEquals(k * 10, (int) r.getInt("val"));
+                    assertEquals(k == 0 ? "old" : ("new" + k), r.getString("str"));
+                }
+            }
+            finally { tx.rollback(); }
+        }
+    }
+
+    public void testUpdateBatch_wideRows() {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                // 1000 rows of 41 columns would be more parameters than allowed in one statement
+                StringBuilder create = new StringBuilder("CREATE TABLE update_batch_wide(id INT");
+                for (int c = 0; c < 40; c++) create.append(", c").append(c).append(" INT");
+                tx.execute("DROP TABLE IF EXISTS update_batch_wide");
+                tx.execute(create.append(")").toString());
+                
+                List<Map<String, Object>> rows = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    tx.execute("INSERT INTO update_batch_wide(id) VALUES (?)", i);
+                    Map<String, Object> row = new HashMap<>();
+                    row.put("id", i);
+                    for (int c = 0; c < 40; c++) row.put("c" + c, i + c);
+                    rows.add(row);
+                }
+                tx.updateBatch("update_batch_wide", Arrays.asList("id"), rows);
+                
+                for (DbQueryResultRow r : tx.query("SELECT id, c39 FROM update_batch_wide"))
+                    assertEquals(r.getInt("id") + 39, (int) r.getInt("c39"));
+            }
+            finally { tx.rollback(); }
+        }
+    }
+
+    public void testWriteJson() throws Exception {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+                tx.query("SELECT 1 AS i, 'a' AS s, NULL AS n").writeJson(out);
+                assertEquals("[{\"i\":1,\"s\":\"a\",\"n\":null}]", out.toString("UTF-8"));
+                
+                out.reset();
+                tx.query("SELECT 1 AS i " + tx.getFromDual() + " WHERE 1=2").writeJson(out);
+                assertEquals("[]", out.toString("UTF-8"));
+
+                if (tx.product == DbServerProduct.postgres) {
+                    out.reset();
+                    tx.query("SELECT 'NaN'::FLOAT8 AS nan, '-Infinity'::FLOAT8 AS inf, ARRAY[1,NULL] AS a, " +
+                        "ARRAY['Infinity'::FLOAT8] AS fa, ARRAY[[1,2],[3,4]] AS aa").writeJson(out);
+                    assertEquals("[{\"nan\":\"NaN\",\"inf\":\"-Infinity\",\"a\":[1,null],\"fa\":[\"Infinity\"]," +
+                        "\"aa\":[[1,2],[3,4]]}]", out.toString("UTF-8"));
+                }
+            }
+            finally { tx.rollback(); }
+        }
+    }
+
+    public void testReadOnly() {
+        for (String jdbc : new String[] { DatabaseConnection.mysql, DatabaseConnection.postgresql }) {
+            try (DbTransaction tx = new DbTransaction(jdbc)) {
+                tx.execute("DROP TABLE IF EXISTS read_only");
+                tx.execute("CREATE TABLE read_only(x INT)");
+                tx.commit();
+            }
+            
+            try (DbTransaction tx = new DbTransaction(jdbc, true)) {
+                assertFalse(tx.query("SELECT * FROM read_only").iterator().hasNext());
+                try { tx.execute("INSERT INTO read_only VALUES (1)"); fail(); }
+                catch (RuntimeException e) { }
+            }
+        }
+    }
+
+    public void testAdvisoryLockDbMutex() {
+        for (String jdbc : new String[] { DatabaseConnection.mysql, DatabaseConnection.postgresql }) {
+            try (DbTransaction tx1 = new DbTransaction(jdbc); DbTransaction tx2 = new DbTransaction(jdbc)) {
+                assertTrue(new AdvisoryLockDbMutex("foo").tryAcquire(tx1, 0));
+                assertTrue(new AdvisoryLockDbMutex("foo").tryAcquire(tx1, 0));  // reentrant
+                assertFalse(new AdvisoryLockDbMutex("foo").tryAcquire(tx2, 50));
+                assertTrue(new AdvisoryLockDbMutex("bar").tryAcquire(tx2, 0));
+                tx1.rollback();
+                assertTrue(new AdvisoryLockDbMutex("foo").tryAcquire(tx2, 0));
+            }
+        }
+    }
+
+    public void testAdvisoryLockDbMutex_mysqlPooledConnection() throws Exception {
+        try (Connection pooled = DriverManager.getConnection(DatabaseConnection.mysql)) {
+            pooled.setAutoCommit(false);
+            // Closing the connection returns it to the "pool", so the session, and any lock it holds, remains
+            Connection unclosable = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("close")) return null;
+                    try { return method.invoke(pooled, args); }
+                    catch (InvocationTargetException e) { throw e.getCause(); }
+                });
+            DbTransaction tx1 = new DbTransaction(DbServerProduct.mysql, unclosable);
+            assertTrue(new AdvisoryLockDbMutex("pooled").tryAcquire(tx1, 0));
+            tx1.commit();
+            
+            try (DbTransaction tx2 = new DbTransaction(DatabaseConnection.mysql)) {
+                assertEquals(Integer.valueOf(1), tx2.query("SELECT IS_FREE_LOCK('pooled') AS free").iterator().next().getInt("free"));
+            }
+        }
+    }
+
+    public void testAdvisoryLockDbMutex_pollingNotMemoized() throws Exception {
+        AdvisoryLockDbMutex mutex = new AdvisoryLockDbMutex("polled");
+        try (DbTransaction holder = new DbTransaction(DatabaseConnection.postgresql);
+             DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            holder.query("SELECT pg_advisory_xact_lock(?)", mutex.getPostgresKey()).stream().count(); // not via the in-JVM lock
+            tx.setQueryMemoization(true);
+            Thread release = new Thread(() -> {
+                try { Thread.sleep(100); } catch (InterruptedException e) { throw new RuntimeException(e); }
+                holder.rollback();
+            });
+            release.start();
+            assertTrue(mutex.tryAcquire(tx, 10_000));
+            release.join();
+        }
+    }
+
+    public void testGeneratedSql() {
+        Map<String, Object> cols = new LinkedHashMap<>();
+        cols.put("name", "foo");
+        cols.put("choice", Choice.a);
+
+        // No connection is needed to generate SQL
+        DbTransaction tx1 = new DbTransaction(DbServerProduct.postgres, null);
+        tx1.addPostgresTypeForEnum(Choice.class, "choice1");
+        assertEquals("INSERT INTO t (\"name\", \"choice\") VALUES (?, ?::choice1)", tx1.getInsertSql("t", cols));
+        tx1.addPostgresTypeForEnum(Choice.class, "choice2");
+        assertEquals("INSERT INTO t (\"name\", \"choice\") VALUES (?, ?::choice2)", tx1.getInsertSql("t", cols));
+
+        DbTransaction tx2 = new DbTransaction(DbServerProduct.postgres, null);
+        tx2.addPostgresTypeForEnum(Choice.class, "choice1");
+        assertSame(tx1.getInsertSql("t", Collections.singletonMap("name", "foo")), tx2.getInsertSql("t", Collections.singletonMap("name", "bar")));
+        assertEquals("INSERT INTO t (\"choice\") VALUES (?::choice1)", tx2.getInsertSql("t", Collections.singletonMap("choice", Choice.b)));
+
+        DbTransaction tx3 = new DbTransaction(DbServerProduct.mysql, null);
+        assertEquals(" INSERT INTO t SET `choice` = ?", tx3.getInsertSql("t", Collections.singletonMap("choice", Choice.b)));
+    }
+
     public void testInsertOrUpdate_Concurrency() {
         Random rand = new Random();
 
@@ -3,6 +3,7 @@ package com.databasesandlife.util.jdbc;
 import com.databasesandlife.util.jdbc.ResultSetIterator;
 import com.databasesandlife.util.jdbc.testutil.DatabaseConnection;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -70,4 +71,68 @@ public class ResultSetIteratorTest extends TestCase {
             assertTrue(pResults.isClosed());
         }
     }
+    
+    public void testPrefetch() throws Exception {
+        for (DbTransaction tx : DatabaseConnection.newDbTransactions()) {
+            try {
+                tx.execute("DROP TABLE IF EXISTS ResultSetIteratorTest");
+                tx.execute("CREATE TABLE ResultSetIteratorTest(intCol INTEGER)");
+                for (int i = 0; i < 100; i++) tx.execute("INSERT INTO ResultSetIteratorTest VALUES(?)", i);
+                
+                PreparedStatement p = tx.getConnection().prepareStatement("SELECT * FROM ResultSetIteratorTest ORDER BY intCol");
+                I i = new I(p);
+                i.setPrefetchDepth(10);
+                for (int expected = 0; expected < 100; expected++) {
+                    assertTrue(i.hasNext());
+                    assertEquals(expected, (int) i.next());
+                }
+                assertFalse(i.hasNext());
+                
+                PreparedStatement pError = tx.getConnection().prepareStatement("SELECT * FROM ResultSetIteratorTest");
+                I iError = new I(pError) {
+                    @Override protected Integer newObjectForRow(ResultSet r) { throw new IllegalStateException("foo"); }
+                };
+                iError.setPrefetchDepth(10);
+                try { iError.hasNext(); fail(); }
+                catch (RuntimeException e) { assertTrue(e.getCause() instanceof IllegalStateException); }
+            }
+            finally { tx.rollback(); }
+        }
+    }
+    
+    /** SQLite in-memory database, as stopping the background thread does not depend on the database */
+    protected Connection newSqliteConnectionWithRows(int rowCount) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        connection.prepareStatement("CREATE TABLE ResultSetIteratorTest(intCol INTEGER)").execute();
+        for (int i = 0; i < rowCount; i++) connection.prepareStatement("INSERT INTO ResultSetIteratorTest VALUES(" + i + ")").execute();
+        return connection;
+    }
+    
+    public void testPrefetch_close() throws Exception {
+        try (Connection connection = newSqliteConnectionWithRows(100)) {
+            PreparedStatement p = connection.prepareStatement("SELECT * FROM ResultSetIteratorTest ORDER BY intCol");
+            I i = new I(p);
+            i.setPrefetchDepth(10);
+            assertEquals(0, (int) i.next());
+            i.close();
+            assertFalse(i.prefetcher.thread.isAlive());
+            assertTrue(p.isClosed());
+            assertFalse(i.hasNext());
+        }
+    }
+    
+    public void testPrefetch_iteratorGarbageCollected() throws Exception {
+        try (Connection connection = newSqliteConnectionWithRows(100)) {
+            PreparedStatement p = connection.prepareStatement("SELECT * FROM ResultSetIteratorTest ORDER BY intCol");
+            I i = new I(p);
+            i.setPrefetchDepth(10);
+            assertEquals(0, (int) i.next());
+            Thread thread = i.prefetcher.thread;
+            i = null;
+            
+            for (int attempt = 0; attempt < 100 && thread.isAlive(); attempt++) { System.gc(); thread.join(100); }
+            assertFalse(thread.isAlive());
+            assertTrue(p.isClosed());
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package com.databasesandlife.util.jdbc;
+
+import com.databasesandlife.util.ThreadPool;
+import com.databasesandlife.util.ThreadPoolService;
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import com.databasesandlife.util.jdbc.DbTransaction.SqlException;
+import com.databasesandlife.util.jdbc.testutil.DatabaseConnection;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Comparator.comparing;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class ShardedDbQueryableTest extends TestCase {
+
+    public void testQuery() {
+        try (DbTransaction tx = new DbTransaction(DatabaseConnection.postgresql)) {
+            tx.execute("DROP TABLE IF EXISTS sharded");
+            tx.execute("CREATE TABLE sharded(x INT)");
+            tx.execute("INSERT INTO sharded VALUES (5), (1), (3)");
+            tx.commit();
+        }
+
+        // Two "shards" which are the same database, so each row is returned twice
+        try (ShardedDbQueryable db = new ShardedDbQueryable(asList(
+            () -> new DbTransaction(DatabaseConnection.postgresql),
+            () -> new DbTransaction(DatabaseConnection.postgresql)
+        ))) {
+            List<Integer> unordered = new ArrayList<>();
+            for (DbQueryResultRow r : db.query("SELECT x FROM sharded")) unordered.add(r.getInt("x"));
+            Collections.sort(unordered);
+            assertEquals(asList(1, 1, 3, 3, 5, 5), unordered);
+
+            List<Integer> ordered = new ArrayList<>();
+            for (DbQueryResultRow r : db.queryOrdered(comparing(r -> r.getInt("x")), null, "SELECT x FROM sharded ORDER BY x"))
+                ordered.add(r.getInt("x"));
+            assertEquals(asList(1, 1, 3, 3, 5, 5), ordered);
+
+            List<Integer> limited = new ArrayList<>();
+            for (DbQueryResultRow r : db.queryOrdered(comparing(r -> r.getInt("x")), 3, "SELECT x FROM sharded ORDER BY x"))
+                limited.add(r.getInt("x"));
+            assertEquals(asList(1, 1, 3), limited);
+        }
+    }
+
+    public void testQuery_shardFails() {
+        try (ShardedDbQueryable db = new ShardedDbQueryable(asList(
+            () -> new DbTransaction(DatabaseConnection.postgresql),
+            () -> new DbTransaction(DatabaseConnection.postgresql)
+        ))) {
+            try { for (DbQueryResultRow ignored : db.query("SELECT * FROM table_which_does_not_exist")) { } fail(); }
+            catch (SqlException e) { assertTrue(e.getMessage().startsWith("Shard ")); }
+
+            // Still usable afterwards
+            int count = 0;
+            for (DbQueryResultRow ignored : db.query("SELECT 1")) count++;
+            assertEquals(2, count);
+        }
+    }
+
+    public void testQuery_sharedService() {
+        try (ThreadPoolService service = new ThreadPoolService("shared", 1)) {
+            try (ShardedDbQueryable db = new ShardedDbQueryable(service, asList(
+                () -> new DbTransaction(DatabaseConnection.postgresql),
+                () -> new DbTransaction(DatabaseConnection.postgresql)
+            ))) {
+                int count = 0;
+                for (DbQueryResultRow ignored : db.query("SELECT 1")) count++;
+                assertEquals(2, count);
+            }
+
+            // The service is not closed with the ShardedDbQueryable
+            int[] executed = new int[1];
+            ThreadPool job = new ThreadPool(service);
+            job.addTask(() -> executed[0]++);
+            job.execute();
+            assertEquals(1, executed[0]);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.databasesandlife.util.jdbc;
+
+import com.databasesandlife.util.jdbc.DbTransaction.DbQueryResultRow;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Function;
+
+/**
+ * @author This source is copyright <a href="http://www.databasesandlife.com">Adrian Smith</a> and licensed under the LGPL 3.
+ * @see <a href="https://github.com/adrianmsmith/databasesandlife-java-common">Project on GitHub</a>
+ */
+public class SqliteDbTransactionFactoryTest extends TestCase {
+
+    protected File file;
+    protected SqliteDbTransactionFactory db;
+
+    @Override protected void setUp() throws IOException {
+        file = File.createTempFile(getClass().getSimpleName(), ".db");
+        db = new SqliteDbTransactionFactory("jdbc:sqlite:" + file.getAbsolutePath());
+        db.write(tx -> { tx.execute("CREATE TABLE t (x INTEGER NOT NULL)"); return null; });
+    }
+
+    @Override protected void tearDown() {
+        db.close();
+        for (String suffix : new String[] { "", "-wal", "-shm" }) new File(file.getAbsolutePath() + suffix).delete();
+    }
+
+    protected List<Integer> readValues() {
+        List<Integer> result = new ArrayList<>();
+        try (DbTransaction tx = db.newReadOnlyDbTransaction()) {
+            for (DbQueryResultRow row : tx.query("SELECT x FROM t ORDER BY x")) result.add(row.getInt("x"));
+        }
+        return result;
+    }
+
+    /** While the writer is busy, writes wait; they are then executed in one transaction */
+    protected List<CompletableFuture<DbTransaction>> submitWhileWriterBusy(List<Function<DbTransaction, DbTransaction>> writes) {
+        CountDownLatch writerBusy = new CountDownLatch(1), release = new CountDownLatch(1);
+        CompletableFuture<Object> blocker = db.submitWrite(tx -> {
+            writerBusy.countDown();
+            try { release.await(); }
+            catch (InterruptedException e) { throw new RuntimeException(e); }
+            return null;
+        });
+        try { writerBusy.await(); }
+        catch (InterruptedException e) { throw new RuntimeException(e); }
+
+        List<CompletableFuture<DbTransaction>> result = new ArrayList<>();
+        for (Function<DbTransaction, DbTransaction> w : writes) result.add(db.submitWrite(w));
+        release.countDown();
+        blocker.join();
+        return result;
+    }
+
+    public void testWrite_groupCommit() {
+        List<Function<DbTransaction, DbTransaction>> writes = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            int x = i;
+            writes.add(tx -> { tx.execute("INSERT INTO t (x) VALUES (?)", x); return tx; });
+        }
+
+        Set<DbTransaction> transactions = new HashSet<>();
+        for (CompletableFuture<DbTransaction> f : submitWhileWriterBusy(writes)) transactions.add(f.join());
+
+        assertEquals(1, transactions.size());
+        assertEquals(20, readValues().size());
+    }
+
+    public void testWrite_failureRolledBackToSavepoint() {
+        List<Function<DbTransaction, DbTransaction>> writes = new ArrayList<>();
+        writes.add(tx -> { tx.execute("INSERT INTO t (x) VALUES (1)"); return tx; });
+        writes.add(tx -> { tx.execute("INSERT INTO t (x) VALUES (2)"); throw new RuntimeException("fails"); });
+        writes.add(tx -> { tx.execute("INSERT INTO t (x) VALUES (3)"); throw new AssertionError("fails"); });
+        writes.add(tx -> { tx.execute("INSERT INTO t (x) VALUES (4)"); return tx; });
+        List<CompletableFuture<DbTransaction>> results = submitWhileWriterBusy(writes);
+
+        assertSame(results.get(0).join(), results.get(3).join());
+        try { results.get(1).join(); fail(); }
+        catch (CompletionException e) { assertTrue(e.getCause() instanceof RuntimeException); }
+        try { results.get(2).join(); fail(); }
+        catch (CompletionException e) { assertTrue(e.getCause() instanceof AssertionError); }
+        try { db.write(tx -> { throw new AssertionError("error"); }); fail(); }
+        catch (AssertionError e) { assertEquals("error", e.getMessage()); }
+        assertEquals(Arrays.asList(1, 4), readValues());
+    }
+
+    public void testNewReadOnlyDbTransaction() {
+        try (DbTransaction tx = db.newReadOnlyDbTransaction()) {
+            tx.execute("INSERT INTO t (x) VALUES (1)");
+            fail();
+        }
+        catch (RuntimeException e) { }
+        assertEquals(Collections.emptyList(), readValues());
+    }
+
+    public void testClose() {
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            int x = i;
+            results.add(db.submitWrite(tx -> { tx.execute("INSERT INTO t (x) VALUES (?)", x); return null; }));
+        }
+        db.close();
+        for (CompletableFuture<Object> f : results) assertTrue(f.isDone() && ! f.isCompletedExceptionally());
+        assertEquals(10, readValues().size());
+        try { db.submitWrite(tx -> null); fail(); }
+        catch (IllegalStateException e) { }
+    }
+
+    public void testWriterInterrupted() throws Exception {
+        CountDownLatch writerBusy = new CountDownLatch(1);
+        Thread[] writer = new Thread[1];
+        CompletableFuture<Object> blocker = db.submitWrite(tx -> {
+            writer[0] = Thread.currentThread();
+            writerBusy.countDown();
+            try { Thread.sleep(60_000); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            return null;
+        });
+        writerBusy.await();
+        CompletableFuture<Object> waiting = db.submitWrite(tx -> null);
+        writer[0].interrupt();
+
+        blocker.join();
+        try { waiting.join(); fail(); }
+        catch (CompletionException e) { assertTrue(e.getCause() instanceof IllegalStateException); }
+
+        // A new writer thread is started
+        db.write(tx -> { tx.execute("INSERT INTO t (x) VALUES (1)"); return null; });
+        assertEquals(Collections.singletonList(1), readValues());
+    }
+}